@@ -0,0 +1,59 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Compiling CoffeeScript, with the compiler already loaded on the thread,
+ * both from scratch and from the disk cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CoffeeScriptBenchmark {
+
+    @Param({ "false", "true" })
+    public boolean diskCache;
+
+    private File directory;
+    private String source;
+    private Context cx;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Fixtures.createDirectory();
+        CoffeeScriptCompiler.setCacheDirectory(diskCache ? directory : null);
+        source = Fixtures.coffeeFile(20);
+        cx = Context.enter();
+    }
+
+    @TearDown
+    public void tearDown() {
+        Context.exit();
+        CoffeeScriptCompiler.setCacheDirectory(null);
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public String compile() throws IOException {
+        return CoffeeScriptCompiler.compile(cx, source);
+    }
+}
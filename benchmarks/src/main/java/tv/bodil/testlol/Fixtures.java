@@ -0,0 +1,132 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+
+/**
+ * Files and a configured mojo for the benchmarks to work on. The benchmarks
+ * live in the plugin's package so they can reach the same methods the mojo
+ * uses.
+ */
+public class Fixtures {
+
+    /**
+     * A log which drops everything below errors, so the benchmarks don't
+     * measure the console.
+     */
+    public static class QuietLog extends SystemStreamLog {
+        @Override
+        public void debug(CharSequence content) {
+        }
+
+        @Override
+        public void info(CharSequence content) {
+        }
+
+        @Override
+        public void warn(CharSequence content) {
+        }
+
+        @Override
+        public boolean isDebugEnabled() {
+            return false;
+        }
+    }
+
+    /**
+     * A mojo set up the way Maven would for a project with the given test
+     * suite and no global files.
+     */
+    public static Testlol createMojo(File testSuite, String executionMode) {
+        Testlol testlol = new Testlol();
+        testlol.setLog(new QuietLog());
+        set(testlol, "testSuite", testSuite);
+        set(testlol, "basePath", testSuite);
+        set(testlol, "executionMode", executionMode);
+        set(testlol, "optimizationLevel", 9);
+        return testlol;
+    }
+
+    private static void set(Object target, String name, Object value) {
+        try {
+            Field field = target.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(target, value);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException(e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static File createDirectory() throws IOException {
+        File directory = File.createTempFile("testlol-bench", "");
+        directory.delete();
+        directory.mkdirs();
+        return directory;
+    }
+
+    public static void delete(File file) {
+        if (file.isDirectory()) {
+            for (File child : file.listFiles()) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    public static File write(File directory, String name, String content)
+            throws IOException {
+        File file = new File(directory, name);
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * @return the source of a test file with the given number of passing
+     *         tests, each doing a little work.
+     */
+    public static String testFile(int tests) {
+        StringBuilder source = new StringBuilder();
+        source.append("function setUp() {\n    this.values = [1, 2, 3];\n}\n\n");
+        for (int i = 0; i < tests; i++) {
+            source.append("function test" + i + "() {\n"
+                    + "    var sum = 0;\n"
+                    + "    for (var i = 0; i < values.length; i++) {\n"
+                    + "        sum += values[i];\n"
+                    + "    }\n"
+                    + "    assertEquals(6, sum);\n"
+                    + "}\n\n");
+        }
+        return source.toString();
+    }
+
+    public static String coffeeFile(int functions) {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < functions; i++) {
+            source.append("square" + i + " = (x) -> x * x\n"
+                    + "list" + i + " = (square" + i + " n for n in [1..10] when n % 2 is 0)\n"
+                    + "class Shape" + i + "\n"
+                    + "  constructor: (@name) ->\n"
+                    + "  describe: -> \"#{@name} is a shape\"\n\n");
+        }
+        return source.toString();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Linting 20 files of 20 tests each on one thread, with and without the
+ * result cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JSLintBenchmark {
+
+    @Param({ "false", "true" })
+    public boolean cached;
+
+    private File directory;
+    private JSLintRunner runner;
+    private Fixtures.QuietLog log = new Fixtures.QuietLog();
+
+    @Setup
+    public void setUp() throws IOException, MojoExecutionException {
+        directory = Fixtures.createDirectory();
+        File sources = new File(directory, "js");
+        sources.mkdirs();
+        for (int i = 0; i < 20; i++) {
+            Fixtures.write(sources, "Bench" + i + ".js", Fixtures.testFile(20));
+        }
+        runner = new JSLintRunner(sources, "white browser");
+        if (cached) {
+            runner.setCacheFile(new File(directory, "jslint-cache.properties"));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public int lint() throws IOException {
+        return runner.lint(log, 1);
+    }
+}
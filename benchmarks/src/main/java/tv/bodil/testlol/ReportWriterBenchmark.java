@@ -0,0 +1,139 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Writing the JUnit XML report for one test file, with one in ten tests
+ * failing with a stack trace, with ReportWriter and with the DOM and
+ * Transformer TestSuite used before it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReportWriterBenchmark {
+
+    @Param({ "10", "100" })
+    public int tests;
+
+    private File directory;
+    private ReportWriter reportWriter;
+    private TestResult result;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Fixtures.createDirectory();
+        reportWriter = new ReportWriter(directory);
+        result = new TestResult("tv.bodil.Bench");
+        for (int i = 0; i < tests; i++) {
+            TestResult.Case test = new TestResult.Case("test" + i, 0.001 * i);
+            if (i % 10 == 9) {
+                List<String> stack = new ArrayList<String>();
+                for (int frame = 0; frame < 10; frame++) {
+                    stack.add("\tat Bench.js:" + (frame * 10 + i) + " (test" + i + ")");
+                }
+                test.setFailure("JsUnitException", "Expected <6> but was <7>", stack);
+            }
+            result.getCases().add(test);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public void write() throws MojoExecutionException {
+        reportWriter.write(result);
+    }
+
+    /**
+     * The report as TestSuite used to write it, building a DOM and a
+     * Transformer for every file. The old code never closed the file, which
+     * would run out of file handles here, so this one does.
+     */
+    @Benchmark
+    public void writeDom() throws Exception {
+        String path = result.getPath();
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .newDocument();
+        Element root = doc.createElement("testsuite");
+        doc.appendChild(root);
+        root.setAttribute("tests", "" + result.getTried());
+        root.setAttribute("failures", "" + result.getFailed());
+        root.setAttribute("name", path);
+        root.setAttribute("timestamp", new SimpleDateFormat(
+                "yyyy-MM-dd'T'HH:mm:ss").format(new Date()));
+        Double totalTime = 0.0;
+        for (TestResult.Case test : result.getCases()) {
+            Element testCase = doc.createElement("testcase");
+            testCase.setAttribute("classname", path);
+            testCase.setAttribute("name", test.getName());
+            Double testTime = test.getTime();
+            testCase.setAttribute("time", String.format("%.3f", testTime));
+            totalTime += testTime;
+            if (test.isFailed()) {
+                Element failure = doc.createElement("failure");
+                if (test.getFailureType() != null) {
+                    failure.setAttribute("type", test.getFailureType());
+                }
+                String msg = test.getMessage();
+                failure.setAttribute("message", msg);
+                StringBuilder body = new StringBuilder();
+                body.append(msg + "\n");
+                if (test.getStackTrace() != null) {
+                    for (String trace : test.getStackTrace()) {
+                        body.append(trace + "\n");
+                    }
+                }
+                failure.setTextContent(body.toString());
+                testCase.appendChild(failure);
+            }
+            root.appendChild(testCase);
+        }
+        root.setAttribute("time", String.format("%.3f", totalTime));
+
+        File report = new File(directory, "TEST-" + path + ".xml");
+        report.createNewFile();
+        OutputStream out = new FileOutputStream(report);
+        try {
+            Transformer xformer = TransformerFactory.newInstance().newTransformer();
+            xformer.transform(new DOMSource(doc), new StreamResult(out));
+        } finally {
+            out.close();
+        }
+    }
+}
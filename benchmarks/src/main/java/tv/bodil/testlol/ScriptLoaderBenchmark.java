@@ -0,0 +1,94 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Compiling and evaluating scripts: Env.js from source, a bundled script
+ * through compileScript() and its caches, and a 100 test file through
+ * evaluateScript(), which is what every test file goes through.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ScriptLoaderBenchmark {
+
+    private static final String ENV_JS = "tv/bodil/testlol/js/env.rhino.js";
+
+    @Param({ "-1", "9" })
+    public int optimizationLevel;
+
+    private File directory;
+    private File testFile;
+    private String envSource;
+    private Context cx;
+    private ScriptableObject global;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Fixtures.createDirectory();
+        testFile = Fixtures.write(directory, "Bench.js", Fixtures.testFile(100));
+        Reader in = new InputStreamReader(Fixtures.class.getClassLoader()
+                .getResourceAsStream(ENV_JS), "UTF-8");
+        try {
+            envSource = ScriptLoader.readReader(in);
+        } finally {
+            in.close();
+        }
+        ContextFactory contextFactory = new ContextFactory();
+        contextFactory.initApplicationClassLoader(Fixtures.class.getClassLoader());
+        cx = contextFactory.enterContext();
+        cx.setOptimizationLevel(optimizationLevel);
+        global = cx.initStandardObjects();
+    }
+
+    @TearDown
+    public void tearDown() {
+        Context.exit();
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public Script compileEnvFromSource() {
+        return ScriptLoader.compile(cx, envSource, ENV_JS, optimizationLevel);
+    }
+
+    @Benchmark
+    public Script compileScript() throws IOException {
+        return ScriptLoader.compileScript(cx, "/tv/bodil/testlol/js/jsUnitCore.js",
+                optimizationLevel);
+    }
+
+    @Benchmark
+    public Scriptable evaluateScript() throws IOException {
+        Scriptable scope = cx.newObject(global);
+        scope.setPrototype(global);
+        scope.setParentScope(null);
+        ScriptLoader.evaluateScript(cx, scope, testFile, "Bench");
+        return scope;
+    }
+}
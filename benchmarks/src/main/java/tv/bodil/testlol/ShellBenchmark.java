@@ -0,0 +1,66 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The cost of a fresh global scope: the bare Shell, and the Shell with
+ * Env.js and JsUnit loaded, which every worker pays once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ShellBenchmark {
+
+    @Param({ "interpreted", "hybrid" })
+    public String executionMode;
+
+    private File directory;
+    private Testlol testlol;
+    private Context cx;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Fixtures.createDirectory();
+        testlol = Fixtures.createMojo(directory, executionMode);
+        ContextFactory contextFactory = new ContextFactory();
+        contextFactory.initApplicationClassLoader(Fixtures.class.getClassLoader());
+        cx = contextFactory.enterContext();
+        cx.setOptimizationLevel(testlol.getTestOptimizationLevel());
+    }
+
+    @TearDown
+    public void tearDown() {
+        Context.exit();
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public Shell createBareShell() {
+        return new Shell(testlol, cx);
+    }
+
+    @Benchmark
+    public Shell loadEnvironment() throws IOException {
+        return testlol.createShell(cx);
+    }
+}
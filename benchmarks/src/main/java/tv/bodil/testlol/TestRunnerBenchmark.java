@@ -0,0 +1,64 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.mozilla.javascript.ContextFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The per file cost of running a test file through testrunner.js on a worker
+ * whose Shell is already set up, for an empty file and a 100 test file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TestRunnerBenchmark {
+
+    @Param({ "0", "100" })
+    public int tests;
+
+    @Param({ "interpreted", "compiled" })
+    public String executionMode;
+
+    private File directory;
+    private File testFile;
+    private ContextWorker worker;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Fixtures.createDirectory();
+        testFile = Fixtures.write(directory, "Bench.js", Fixtures.testFile(tests));
+        Testlol testlol = Fixtures.createMojo(directory, executionMode);
+        ContextFactory contextFactory = new ContextFactory();
+        contextFactory.initApplicationClassLoader(Fixtures.class.getClassLoader());
+        worker = new ContextWorker(contextFactory, testlol, null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        worker.close();
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public TestResult runFile() throws MojoExecutionException, IOException {
+        return worker.run(testFile, "Bench");
+    }
+}
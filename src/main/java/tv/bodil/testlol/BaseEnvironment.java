@@ -0,0 +1,42 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps sealed base Shells, with Env.js and JsUnit loaded but nothing of any
+ * module's own, for later executions of the plugin in the same Maven JVM,
+ * such as the other modules of a reactor build.
+ *
+ * The Shells are held in a static of a class loaded by the plugin's class
+ * loader, so they last as long as Maven keeps that class loader, and a
+ * different version of the plugin never sees them. They're keyed by how the
+ * bundled scripts were compiled, since a base Shell built for one execution
+ * mode can't be used by another.
+ */
+final class BaseEnvironment {
+
+    private static final Map<String, Shell> shells = new HashMap<String, Shell>();
+
+    private BaseEnvironment() {
+    }
+
+    /**
+     * @return the base Shell kept under the given key, or null. Callers
+     *         building one when there's none should hold the lock on this
+     *         class until they've put it.
+     */
+    static synchronized Shell get(String key) {
+        return shells.get(key);
+    }
+
+    static synchronized void put(String key, Shell shell) {
+        shells.put(key, shell);
+    }
+}
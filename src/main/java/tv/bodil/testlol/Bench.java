@@ -0,0 +1,247 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.Scriptable;
+
+/**
+ * Runs the bench* functions found in the test suite as micro-benchmarks, in
+ * the same environment the tests run in. Each function is called repeatedly
+ * for a number of warmup iterations, which aren't measured, and then for a
+ * number of measurement iterations.
+ *
+ * @goal bench
+ * @configurator include-project-dependencies
+ * @requiresDependencyResolution test
+ */
+public class Bench extends Testlol {
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    /**
+     * Location of the benchmarks. Defaults to the test suite.
+     *
+     * @parameter expression="${testlol.benchSuite}"
+     */
+    private File benchSuite;
+
+    /**
+     * Number of iterations to run each function before measuring it.
+     *
+     * @parameter default-value="3" expression="${testlol.warmupIterations}"
+     */
+    private int warmupIterations;
+
+    /**
+     * Number of measured iterations.
+     *
+     * @parameter default-value="5" expression="${testlol.measurementIterations}"
+     */
+    private int measurementIterations;
+
+    /**
+     * How long each iteration keeps calling the function, in ms. A function
+     * is always called at least once per iteration.
+     *
+     * @parameter default-value="1000" expression="${testlol.iterationTime}"
+     */
+    private long iterationTime;
+
+    /**
+     * Where to write bench-results.json and bench-results.csv.
+     *
+     * @parameter expression="${project.build.directory}/testlol"
+     */
+    private File benchReportPath;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        if (isSkipped()) {
+            getLog().info("Benchmarks are skipped.");
+            return;
+        }
+        if (measurementIterations < 1) {
+            throw new MojoExecutionException("Invalid number of measurement iterations "
+                    + measurementIterations + ", expected at least 1");
+        }
+        configure();
+        ContextFactory contextFactory = createContextFactory();
+        File suite = (benchSuite != null) ? benchSuite : getTestSuite();
+        List<File> files = new ArrayList<File>(ScriptLoader.findTests(suite));
+        Collections.sort(files);
+
+        List<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+        getLog().info("Running benchmarks in " + suite + ": " + warmupIterations
+                + " warmup and " + measurementIterations + " measurement iterations of "
+                + iterationTime + " ms");
+        Context cx = contextFactory.enterContext();
+        try {
+            cx.setOptimizationLevel(getTestOptimizationLevel());
+            Shell shell = createShell(cx);
+            for (File file : files) {
+                results.addAll(benchFile(cx, shell, file, TestSuite.getTestPath(
+                        suite, file)));
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage());
+        } catch (RhinoException e) {
+            throw new MojoFailureException(e.getMessage());
+        } finally {
+            Context.exit();
+        }
+
+        if (results.isEmpty()) {
+            getLog().info("No bench functions found.");
+            return;
+        }
+        try {
+            benchReportPath.mkdirs();
+            writeJson(new File(benchReportPath, "bench-results.json"), results);
+            writeCsv(new File(benchReportPath, "bench-results.csv"), results);
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage());
+        }
+        getLog().info("Benchmark results written to " + benchReportPath);
+    }
+
+    private List<BenchmarkResult> benchFile(Context cx, Shell shell, File file,
+            String path) throws IOException {
+        Scriptable scope = cx.newObject(shell);
+        scope.setPrototype(shell);
+        scope.setParentScope(null);
+        Shell.resetEventLoop(cx);
+        XhrFixtures.startFile(cx);
+        ScriptLoader.evaluateScript(cx, scope, file, path);
+
+        List<String> names = new ArrayList<String>();
+        for (Object id : scope.getIds()) {
+            if (id instanceof String && ((String) id).startsWith("bench")
+                    && scope.get((String) id, scope) instanceof Function) {
+                names.add((String) id);
+            }
+        }
+        List<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+        if (names.isEmpty()) {
+            return results;
+        }
+
+        getLog().info("Benchmarking " + path);
+        callIfFunction(cx, scope, "setUp");
+        for (String name : names) {
+            Function function = (Function) scope.get(name, scope);
+            BenchmarkResult result = new BenchmarkResult(path, name);
+            for (int i = 0; i < warmupIterations; i++) {
+                runIteration(cx, scope, function, null);
+            }
+            for (int i = 0; i < measurementIterations; i++) {
+                runIteration(cx, scope, function, result);
+            }
+            getLog().info(String.format(Locale.ENGLISH,
+                    "  %s(): %.3f ops/s, mean %.3f +/- %.3f us, p50 %.3f us, p99 %.3f us",
+                    name, result.getOpsPerSecond(), result.getMean(), result.getError(),
+                    result.getPercentile(50), result.getPercentile(99)));
+            results.add(result);
+        }
+        callIfFunction(cx, scope, "tearDown");
+        return results;
+    }
+
+    private void runIteration(Context cx, Scriptable scope, Function function,
+            BenchmarkResult result) {
+        long deadline = System.nanoTime() + iterationTime * 1000000L;
+        long calls = 0, nanos = 0;
+        do {
+            long start = System.nanoTime();
+            function.call(cx, scope, scope, NO_ARGS);
+            long time = System.nanoTime() - start;
+            calls++;
+            nanos += time;
+            if (result != null) {
+                result.addCall(time);
+            }
+        } while (System.nanoTime() - deadline < 0);
+        if (result != null) {
+            result.addIteration(calls, nanos);
+        }
+    }
+
+    private static void callIfFunction(Context cx, Scriptable scope, String name) {
+        Object function = scope.get(name, scope);
+        if (function instanceof Function) {
+            ((Function) function).call(cx, scope, scope, NO_ARGS);
+        }
+    }
+
+    private static void writeJson(File file, List<BenchmarkResult> results)
+            throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write("{\n  \"benchmarks\": [");
+            String separator = "\n";
+            for (BenchmarkResult result : results) {
+                out.write(separator + "    {\"path\": " + RunMetrics.quote(result.getPath())
+                        + ", \"name\": " + RunMetrics.quote(result.getName())
+                        + ", \"iterations\": " + result.getIterations()
+                        + ", \"calls\": " + result.getCalls()
+                        + ", \"opsPerSecond\": " + RunMetrics.number(result.getOpsPerSecond())
+                        + ", \"meanUs\": " + RunMetrics.number(result.getMean())
+                        + ", \"errorUs\": " + (Double.isNaN(result.getError()) ? "null"
+                                : RunMetrics.number(result.getError()))
+                        + ", \"p50Us\": " + RunMetrics.number(result.getPercentile(50))
+                        + ", \"p99Us\": " + RunMetrics.number(result.getPercentile(99))
+                        + "}");
+                separator = ",\n";
+            }
+            out.write("\n  ]\n}\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeCsv(File file, List<BenchmarkResult> results)
+            throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write("path,name,iterations,calls,ops_per_s,mean_us,error_us,p50_us,p99_us\n");
+            for (BenchmarkResult result : results) {
+                out.write(csv(result.getPath()) + "," + csv(result.getName()) + ","
+                        + result.getIterations() + "," + result.getCalls() + ","
+                        + RunMetrics.number(result.getOpsPerSecond()) + ","
+                        + RunMetrics.number(result.getMean()) + ","
+                        + (Double.isNaN(result.getError()) ? ""
+                                : RunMetrics.number(result.getError())) + ","
+                        + RunMetrics.number(result.getPercentile(50)) + ","
+                        + RunMetrics.number(result.getPercentile(99)) + "\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String csv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+}
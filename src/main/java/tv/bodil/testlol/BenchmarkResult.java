@@ -0,0 +1,140 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measurements of one bench function: the mean time per call of every
+ * measurement iteration, and the time of individual calls.
+ *
+ * Individual call times are kept in a fixed size random sample, so fast
+ * functions called millions of times don't eat the heap. The percentiles are
+ * taken from the sample.
+ */
+public class BenchmarkResult {
+
+    private static final int SAMPLE_SIZE = 65536;
+
+    /**
+     * Two sided Student's t for a 99.9% confidence interval, by degrees of
+     * freedom from 1 to 30. Above that the normal distribution is close enough.
+     */
+    private static final double[] T_999 = { 636.62, 31.599, 12.924, 8.610,
+            6.869, 5.959, 5.408, 5.041, 4.781, 4.587, 4.437, 4.318, 4.221, 4.140,
+            4.073, 4.015, 3.965, 3.922, 3.883, 3.850, 3.819, 3.792, 3.768, 3.745,
+            3.725, 3.707, 3.690, 3.674, 3.659, 3.646 };
+
+    private final String path;
+    private final String name;
+    private final List<Double> iterations = new ArrayList<Double>();
+    private final long[] sample = new long[SAMPLE_SIZE];
+    private final Random random = new Random(0);
+    private long calls;
+    private long totalNanos;
+    private long[] sorted;
+
+    public BenchmarkResult(String path, String name) {
+        this.path = path;
+        this.name = name;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Record a single measured call.
+     */
+    void addCall(long nanos) {
+        if (calls < SAMPLE_SIZE) {
+            sample[(int) calls] = nanos;
+        } else {
+            long slot = (long) (random.nextDouble() * (calls + 1));
+            if (slot < SAMPLE_SIZE) {
+                sample[(int) slot] = nanos;
+            }
+        }
+        calls++;
+        totalNanos += nanos;
+        sorted = null;
+    }
+
+    /**
+     * Record the end of a measurement iteration of the given number of calls.
+     */
+    void addIteration(long iterationCalls, long iterationNanos) {
+        iterations.add((double) iterationNanos / iterationCalls);
+    }
+
+    public long getCalls() {
+        return calls;
+    }
+
+    public int getIterations() {
+        return iterations.size();
+    }
+
+    public double getOpsPerSecond() {
+        return (totalNanos > 0) ? calls * 1e9 / totalNanos : 0.0;
+    }
+
+    /**
+     * @return the mean time per call, in microseconds.
+     */
+    public double getMean() {
+        return (calls > 0) ? totalNanos / 1000.0 / calls : 0.0;
+    }
+
+    /**
+     * @return the half width of the 99.9% confidence interval of the mean, in
+     *         microseconds, from the spread of the iteration means. NaN with
+     *         less than two iterations.
+     */
+    public double getError() {
+        int n = iterations.size();
+        if (n < 2) {
+            return Double.NaN;
+        }
+        double mean = 0.0;
+        for (double iteration : iterations) {
+            mean += iteration;
+        }
+        mean /= n;
+        double variance = 0.0;
+        for (double iteration : iterations) {
+            variance += (iteration - mean) * (iteration - mean);
+        }
+        variance /= n - 1;
+        double t = (n - 1 <= T_999.length) ? T_999[n - 2] : 3.291;
+        return t * Math.sqrt(variance / n) / 1000.0;
+    }
+
+    /**
+     * @return the given percentile (0-100) of the time per call, in
+     *         microseconds.
+     */
+    public double getPercentile(double percentile) {
+        int size = (int) Math.min(calls, SAMPLE_SIZE);
+        if (size == 0) {
+            return 0.0;
+        }
+        if (sorted == null) {
+            sorted = Arrays.copyOf(sample, size);
+            Arrays.sort(sorted);
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * size) - 1;
+        return sorted[Math.max(0, Math.min(size - 1, index))] / 1000.0;
+    }
+}
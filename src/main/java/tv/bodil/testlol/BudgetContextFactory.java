@@ -0,0 +1,159 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.EvaluatorException;
+
+/**
+ * A ContextFactory which stops scripts running past their budget of wall
+ * clock time or instructions, using Rhino's instruction observer.
+ *
+ * There are two budgets, one for each test file and one for each test
+ * function. A test over budget gets an exception it can catch; it keeps
+ * getting it until the test returns, so a test can't swallow it and carry on
+ * looping. A file over budget gets an Error, which scripts can't catch, and
+ * the file is abandoned.
+ *
+ * The time budget is only checked while scripts are running, so a script
+ * blocked in a single Java call isn't stopped until the call returns.
+ */
+public class BudgetContextFactory extends ContextFactory {
+
+    /**
+     * Check the budgets roughly every this many instructions.
+     */
+    private static final int INSTRUCTION_THRESHOLD = 10000;
+
+    private static final Object FILE_BUDGET = new Object();
+    private static final Object TEST_BUDGET = new Object();
+
+    /**
+     * Thrown when a test file runs over its budget. An Error rather than an
+     * exception, so scripts can't catch it.
+     */
+    @SuppressWarnings("serial")
+    public static class BudgetExceededError extends Error {
+        public BudgetExceededError(String message) {
+            super(message);
+        }
+    }
+
+    private static class Budget {
+        private final String what;
+        private final long timeout;
+        private final long instructionLimit;
+        private final long deadline;
+        private long instructions;
+        private String exceeded;
+
+        Budget(String what, long timeout, long instructionLimit) {
+            this.what = what;
+            this.timeout = timeout;
+            this.instructionLimit = instructionLimit;
+            this.deadline = System.nanoTime() + timeout * 1000000L;
+        }
+
+        /**
+         * @return a message if the budget has been exceeded, now or before.
+         */
+        String charge(int count) {
+            if (exceeded == null) {
+                instructions += count;
+                if (instructionLimit > 0 && instructions > instructionLimit) {
+                    exceeded = what + " exceeded its budget of "
+                            + instructionLimit + " instructions";
+                } else if (timeout > 0 && System.nanoTime() - deadline > 0) {
+                    exceeded = what + " exceeded its time budget of " + timeout
+                            + " ms";
+                }
+            }
+            return exceeded;
+        }
+    }
+
+    private final long testTimeout, testInstructionLimit;
+    private final long fileTimeout, fileInstructionLimit;
+
+    /**
+     * Timeouts are in ms. A budget of 0 means no limit.
+     */
+    public BudgetContextFactory(long testTimeout, long testInstructionLimit,
+            long fileTimeout, long fileInstructionLimit) {
+        this.testTimeout = testTimeout;
+        this.testInstructionLimit = testInstructionLimit;
+        this.fileTimeout = fileTimeout;
+        this.fileInstructionLimit = fileInstructionLimit;
+    }
+
+    public boolean isEnabled() {
+        return testTimeout > 0 || testInstructionLimit > 0 || fileTimeout > 0
+                || fileInstructionLimit > 0;
+    }
+
+    @Override
+    protected Context makeContext() {
+        Context cx = super.makeContext();
+        if (isEnabled()) {
+            cx.setInstructionObserverThreshold(INSTRUCTION_THRESHOLD);
+        }
+        return cx;
+    }
+
+    @Override
+    protected void observeInstructionCount(Context cx, int instructionCount) {
+        Budget file = (Budget) cx.getThreadLocal(FILE_BUDGET);
+        if (file != null) {
+            String exceeded = file.charge(instructionCount);
+            if (exceeded != null) {
+                throw new BudgetExceededError(exceeded);
+            }
+        }
+        Budget test = (Budget) cx.getThreadLocal(TEST_BUDGET);
+        if (test != null) {
+            String exceeded = test.charge(instructionCount);
+            if (exceeded != null) {
+                throw new EvaluatorException(exceeded);
+            }
+        }
+    }
+
+    /**
+     * Start the budget for a test file on the current Context. Does nothing
+     * unless the Context was made by a BudgetContextFactory.
+     */
+    public static void startFile(Context cx, String path) {
+        if (cx.getFactory() instanceof BudgetContextFactory) {
+            BudgetContextFactory factory = (BudgetContextFactory) cx.getFactory();
+            cx.putThreadLocal(FILE_BUDGET, new Budget("Test file " + path,
+                    factory.fileTimeout, factory.fileInstructionLimit));
+        }
+    }
+
+    public static void stopFile(Context cx) {
+        cx.removeThreadLocal(TEST_BUDGET);
+        cx.removeThreadLocal(FILE_BUDGET);
+    }
+
+    public static void startTest(Context cx, String name) {
+        if (cx.getFactory() instanceof BudgetContextFactory) {
+            BudgetContextFactory factory = (BudgetContextFactory) cx.getFactory();
+            cx.putThreadLocal(TEST_BUDGET, new Budget("Test " + name + "()",
+                    factory.testTimeout, factory.testInstructionLimit));
+        }
+    }
+
+    /**
+     * @return a message if the test ran over its budget, or null.
+     */
+    public static String stopTest(Context cx) {
+        Budget test = (Budget) cx.getThreadLocal(TEST_BUDGET);
+        cx.removeThreadLocal(TEST_BUDGET);
+        return (test != null) ? test.charge(0) : null;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+
+/**
+ * Compiles CoffeeScript to JavaScript.
+ *
+ * The compiler is loaded once per thread and kept for the life of the
+ * thread. Compiled output is also stored on disk, if a cache directory is
+ * set, under the hash of the CoffeeScript source and the compiler itself, so
+ * unchanged files aren't compiled again by later builds.
+ */
+public class CoffeeScriptCompiler {
+
+    private static final String COMPILER_PATH = "tv/bodil/testlol/js/coffee-script.js";
+
+    private static final ThreadLocal<Scriptable> compilers = new ThreadLocal<Scriptable>();
+
+    private static volatile File cacheDirectory;
+
+    private static String compilerVersion;
+
+    public static void setCacheDirectory(File directory) {
+        cacheDirectory = directory;
+    }
+
+    public static String compile(Context cx, String source) throws IOException {
+        File directory = cacheDirectory;
+        if (directory == null) {
+            return compileSource(cx, source);
+        }
+        String key = new ContentHash().update(getCompilerVersion()).update(
+                source).digest();
+        File cached = new File(directory, key + ".js");
+        if (cached.isFile()) {
+            Reader in = new InputStreamReader(new FileInputStream(cached), "UTF-8");
+            try {
+                return ScriptLoader.readReader(in);
+            } finally {
+                in.close();
+            }
+        }
+        String compiled = compileSource(cx, source);
+        directory.mkdirs();
+        // Write to a temporary file first so other threads and builds never
+        // see a partial file
+        File temp = File.createTempFile(key, ".tmp", directory);
+        Writer out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+        try {
+            out.write(compiled);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(cached)) {
+            temp.delete();
+        }
+        return compiled;
+    }
+
+    private static String compileSource(Context cx, String source)
+            throws IOException {
+        Scriptable scope = compilers.get();
+        if (scope == null) {
+            scope = cx.initStandardObjects();
+            // The compiler isn't what executionMode is about, so always use
+            // its precompiled classes
+            ScriptLoader.compileScript(cx, COMPILER_PATH, ScriptLoader.PRECOMPILED_LEVEL)
+                    .exec(cx, scope);
+            compilers.set(scope);
+        }
+        Scriptable coffeeScript = (Scriptable) scope.get("CoffeeScript", scope);
+        Function compile = (Function) coffeeScript.get("compile", coffeeScript);
+        return Context.toString(compile.call(cx, scope, coffeeScript,
+                new Object[] { source }));
+    }
+
+    private static synchronized String getCompilerVersion() throws IOException {
+        if (compilerVersion == null) {
+            InputStream in = CoffeeScriptCompiler.class.getClassLoader()
+                    .getResourceAsStream(COMPILER_PATH);
+            if (in == null) {
+                throw new IOException("Unable to load resource: " + COMPILER_PATH);
+            }
+            compilerVersion = new ContentHash().update(in).digest();
+        }
+        return compilerVersion;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-1 digests, as hex strings, for keying caches on content.
+ */
+public class ContentHash {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final MessageDigest digest;
+
+    public ContentHash() {
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    public ContentHash update(byte[] bytes) {
+        digest.update(bytes);
+        return this;
+    }
+
+    public ContentHash update(String text) {
+        try {
+            digest.update(text.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        // Keep "ab" + "c" and "a" + "bc" apart
+        digest.update((byte) 0);
+        return this;
+    }
+
+    public ContentHash update(InputStream in) throws IOException {
+        try {
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        return this;
+    }
+
+    public ContentHash update(File file) throws IOException {
+        return update(new FileInputStream(file));
+    }
+
+    public String digest() {
+        byte[] bytes = digest.digest();
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            out[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(out);
+    }
+
+    public static String of(String text) {
+        return new ContentHash().update(text).digest();
+    }
+
+    public static String of(File file) throws IOException {
+        return new ContentHash().update(file).digest();
+    }
+}
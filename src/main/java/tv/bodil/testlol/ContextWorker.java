@@ -0,0 +1,95 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+
+/**
+ * Runs test files in this JVM, inside a Context entered on the worker's own
+ * thread. Unless a shared base scope is given, the worker builds its own fully
+ * initialised Shell.
+ */
+public class ContextWorker implements TestWorker {
+
+    private final Context cx;
+    private final Shell shell;
+    private final Script testRunner;
+    private boolean closed;
+
+    public ContextWorker(ContextFactory contextFactory, Testlol testlol,
+            Shell baseShell) throws IOException {
+        cx = contextFactory.enterContext();
+        try {
+            cx.setOptimizationLevel(testlol.getTestOptimizationLevel());
+            Shell.attach(cx, testlol);
+            shell = (baseShell != null) ? baseShell : testlol.createShell(cx);
+            testRunner = testlol.loadTestRunner(cx);
+        } catch (IOException e) {
+            Context.exit();
+            throw e;
+        } catch (RuntimeException e) {
+            Context.exit();
+            throw e;
+        }
+    }
+
+    public TestResult run(File file, String path)
+            throws MojoExecutionException, IOException {
+        Set<File> dependencies;
+        // Copy the global scope to attempt to isolate the test's
+        // environment
+        Scriptable testScope = cx.newObject(shell);
+        testScope.setPrototype(shell);
+        testScope.setParentScope(null);
+
+        long start = RunMetrics.now();
+        long evaluated = 0;
+        BudgetContextFactory.BudgetExceededError timeout = null;
+        Shell.resetEventLoop(cx);
+        XhrFixtures.startFile(cx);
+        DependencyRecorder.start();
+        BudgetContextFactory.startFile(cx, path);
+        try {
+            ScriptLoader.evaluateScript(cx, testScope, file, path);
+            evaluated = RunMetrics.now();
+            testRunner.exec(cx, testScope);
+        } catch (BudgetContextFactory.BudgetExceededError e) {
+            timeout = e;
+        } finally {
+            BudgetContextFactory.stopFile(cx);
+            dependencies = DependencyRecorder.stop();
+        }
+        long end = RunMetrics.now();
+        if (evaluated == 0) {
+            evaluated = end;
+        }
+        TestResult result = TestResult.fromScope(path, testScope);
+        if (timeout != null) {
+            result.addTimeout(timeout.getMessage(), RunMetrics.toMillis(end - start));
+        }
+        result.setDependencies(dependencies);
+        result.setTimes(RunMetrics.toMillis(evaluated - start), RunMetrics
+                .toMillis(end - start));
+        return result;
+    }
+
+    public void close() {
+        // Exiting twice would exit a Context entered by someone else
+        if (!closed) {
+            closed = true;
+            Context.exit();
+        }
+    }
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Parser;
+import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.ast.AstNode;
+import org.mozilla.javascript.ast.AstRoot;
+import org.mozilla.javascript.ast.Block;
+import org.mozilla.javascript.ast.Comment;
+import org.mozilla.javascript.ast.FunctionNode;
+import org.mozilla.javascript.ast.NodeVisitor;
+import org.mozilla.javascript.ast.Scope;
+import org.mozilla.javascript.ast.SwitchCase;
+
+/**
+ * Statement coverage of the JavaScript files under the base path.
+ *
+ * Files are instrumented as they're loaded, by inserting a counter increment
+ * in front of every statement found in the Rhino AST. Nothing else in the
+ * source moves to another line, so line numbers in stack traces stay right.
+ * The counters of each file are a Java int[], which scripts reach through
+ * getCoverageCounters(). Instrumented sources are cached by content hash, in
+ * memory and on disk.
+ *
+ * Counters aren't synchronized, so hit counts can come out a little low when
+ * several threads run the same code, but a line that ran is always counted.
+ */
+public class Coverage {
+
+    private static final String PLACEHOLDER = "__testlol_cov$";
+    private static final String COUNTERS = "__testlol_cov";
+
+    private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+    private static final AtomicInteger generations = new AtomicInteger();
+
+    private static volatile Coverage active;
+
+    private static class Instrumented {
+        final String source;
+        final int[] lines;
+
+        Instrumented(String source, int[] lines) {
+            this.source = source;
+            this.lines = lines;
+        }
+    }
+
+    private static class FileCoverage {
+        final File file;
+        final int[] lines;
+        final int[] counters;
+
+        FileCoverage(File file, int[] lines) {
+            this.file = file;
+            this.lines = lines;
+            this.counters = new int[lines.length];
+        }
+
+        /**
+         * @return hits by line, for the lines with statements on them.
+         */
+        Map<Integer, Integer> getLineHits() {
+            Map<Integer, Integer> hits = new TreeMap<Integer, Integer>();
+            for (int i = 0; i < lines.length; i++) {
+                Integer known = hits.get(lines[i]);
+                hits.put(lines[i], (known == null) ? counters[i] : Math.max(known,
+                        counters[i]));
+            }
+            return hits;
+        }
+    }
+
+    private final String basePath;
+    private final File basePathFile;
+    private final File cacheDirectory;
+    private final String stamp = ":coverage" + generations.incrementAndGet();
+    private final String version;
+    private final Map<String, Instrumented> instrumented = new HashMap<String, Instrumented>();
+    private final List<FileCoverage> files = new ArrayList<FileCoverage>();
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+    public Coverage(File basePath, File cacheDirectory) throws IOException {
+        this.basePathFile = basePath.getCanonicalFile();
+        this.basePath = basePathFile.getPath() + File.separator;
+        this.cacheDirectory = cacheDirectory;
+        // The disk cache is only good for the plugin which instrumented it
+        this.version = Testlol.getPluginVersion();
+    }
+
+    /**
+     * Instrument the files loaded from now on, or stop instrumenting if null.
+     */
+    public static void setActive(Coverage coverage) {
+        active = coverage;
+    }
+
+    public static boolean isActive() {
+        return active != null;
+    }
+
+    /**
+     * @return a stamp for script caches, so scripts compiled while one
+     *         coverage run was active aren't reused by another, or by a run
+     *         without coverage.
+     */
+    public static String getStamp() {
+        Coverage coverage = active;
+        return (coverage != null) ? coverage.stamp : "";
+    }
+
+    /**
+     * Instrument a script loaded from the given file, if coverage is active
+     * and it's a JavaScript file under the base path.
+     *
+     * @return the instrumented source, or the source as it was.
+     */
+    public static String instrument(Context cx, File file, String source)
+            throws IOException {
+        Coverage coverage = active;
+        if (coverage == null || file == null || !file.getName().endsWith(".js")) {
+            return source;
+        }
+        return coverage.instrumentFile(cx, file.getCanonicalFile(), source);
+    }
+
+    /**
+     * The counters of the file with the given id, for instrumented scripts.
+     */
+    public static int[] getCounters(int id) {
+        Coverage coverage = active;
+        if (coverage == null) {
+            throw new IllegalStateException("Coverage is not active");
+        }
+        return coverage.getFile(id).counters;
+    }
+
+    private synchronized FileCoverage getFile(int id) {
+        return files.get(id);
+    }
+
+    private String instrumentFile(Context cx, File file, String source)
+            throws IOException {
+        if (!file.getPath().startsWith(basePath)) {
+            return source;
+        }
+        Instrumented result = getInstrumented(cx, source);
+        if (result == null) {
+            // Leave it to Rhino to report the syntax error
+            return source;
+        }
+        int id = register(file, result.lines);
+        return "var " + COUNTERS + id + " = getCoverageCounters(" + id + ");"
+                + result.source.replace(PLACEHOLDER, COUNTERS + id);
+    }
+
+    /**
+     * Start counting the given file, or start over if it has changed since
+     * it was last loaded.
+     */
+    private synchronized int register(File file, int[] lines) {
+        Integer id = ids.get(file.getPath());
+        if (id != null && Arrays.equals(files.get(id).lines, lines)) {
+            return id;
+        }
+        FileCoverage coverage = new FileCoverage(file, lines);
+        if (id == null) {
+            id = files.size();
+            files.add(coverage);
+            ids.put(file.getPath(), id);
+        } else {
+            files.set(id, coverage);
+        }
+        return id;
+    }
+
+    private Instrumented getInstrumented(Context cx, String source)
+            throws IOException {
+        String key = new ContentHash().update(version).update(source).digest();
+        synchronized (instrumented) {
+            Instrumented result = instrumented.get(key);
+            if (result != null) {
+                return result;
+            }
+        }
+        Instrumented result = readCached(key);
+        if (result == null) {
+            try {
+                result = instrumentSource(cx, source);
+            } catch (RhinoException e) {
+                return null;
+            }
+            writeCached(key, result);
+        }
+        synchronized (instrumented) {
+            instrumented.put(key, result);
+        }
+        return result;
+    }
+
+    private static Instrumented instrumentSource(Context cx, String source) {
+        CompilerEnvirons env = new CompilerEnvirons();
+        if (cx != null) {
+            env.initFromContext(cx);
+        }
+        env.setRecordingComments(false);
+        AstRoot root = new Parser(env, env.getErrorReporter()).parse(source, null, 1);
+        final List<Integer> positions = new ArrayList<Integer>();
+        root.visit(new NodeVisitor() {
+            public boolean visit(AstNode node) {
+                if (isStatement(node)) {
+                    positions.add(node.getAbsolutePosition());
+                }
+                return true;
+            }
+        });
+        Collections.sort(positions);
+
+        StringBuilder out = new StringBuilder(source.length() + positions.size() * 24);
+        int[] lines = new int[positions.size()];
+        int line = 1, last = 0;
+        for (int i = 0; i < positions.size(); i++) {
+            int position = positions.get(i);
+            for (int c = last; c < position; c++) {
+                if (source.charAt(c) == '\n') {
+                    line++;
+                }
+            }
+            out.append(source, last, position);
+            out.append(PLACEHOLDER).append('[').append(i).append("]++;");
+            lines[i] = line;
+            last = position;
+        }
+        out.append(source, last, source.length());
+        return new Instrumented(out.toString(), lines);
+    }
+
+    /**
+     * Statements directly inside a script, function body, block or case can
+     * have a counter put in front of them. Lone statements, such as the body
+     * of an if without braces, are left alone, as are function declarations.
+     */
+    private static boolean isStatement(AstNode node) {
+        AstNode parent = node.getParent();
+        if (parent == null || node instanceof FunctionNode || node instanceof Comment) {
+            return false;
+        }
+        if (parent instanceof SwitchCase) {
+            return node != ((SwitchCase) parent).getExpression();
+        }
+        return parent instanceof AstRoot || parent instanceof Block
+                || parent.getClass() == Scope.class;
+    }
+
+    /**
+     * The disk cache holds the statement lines on the first line of the file,
+     * and the instrumented source after it.
+     */
+    private Instrumented readCached(String key) throws IOException {
+        if (cacheDirectory == null) {
+            return null;
+        }
+        File cached = new File(cacheDirectory, key + ".js");
+        if (!cached.isFile()) {
+            return null;
+        }
+        Reader in = new InputStreamReader(new FileInputStream(cached), "UTF-8");
+        String content;
+        try {
+            content = ScriptLoader.readReader(in);
+        } finally {
+            in.close();
+        }
+        int split = content.indexOf('\n');
+        if (split < 0) {
+            return null;
+        }
+        String header = content.substring(0, split);
+        String[] values = header.isEmpty() ? new String[0] : header.split(",");
+        int[] lines = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            lines[i] = Integer.parseInt(values[i]);
+        }
+        return new Instrumented(content.substring(split + 1), lines);
+    }
+
+    private void writeCached(String key, Instrumented result) throws IOException {
+        if (cacheDirectory == null) {
+            return;
+        }
+        cacheDirectory.mkdirs();
+        File temp = File.createTempFile(key, ".tmp", cacheDirectory);
+        Writer out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+        try {
+            for (int i = 0; i < result.lines.length; i++) {
+                out.write((i > 0 ? "," : "") + result.lines[i]);
+            }
+            out.write("\n");
+            out.write(result.source);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(new File(cacheDirectory, key + ".js"))) {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Add the JavaScript files under the base path which were never loaded,
+     * so they're reported as not covered at all.
+     */
+    public void addUnloadedFiles(Context cx) throws IOException {
+        addUnloadedFiles(cx, basePathFile);
+    }
+
+    private void addUnloadedFiles(Context cx, File file) throws IOException {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    addUnloadedFiles(cx, child);
+                }
+            }
+        } else if (file.isFile() && file.getName().endsWith(".js")) {
+            synchronized (this) {
+                if (ids.containsKey(file.getPath())) {
+                    return;
+                }
+            }
+            Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+            String source;
+            try {
+                source = ScriptLoader.readReader(in);
+            } finally {
+                in.close();
+            }
+            Instrumented result = getInstrumented(cx, source);
+            if (result != null) {
+                register(file, result.lines);
+            }
+        }
+    }
+
+    /**
+     * @return the number of lines with statements on them, and the number of
+     *         those which ran.
+     */
+    public synchronized int[] getTotals() {
+        int valid = 0, covered = 0;
+        for (FileCoverage file : files) {
+            for (int hits : file.getLineHits().values()) {
+                valid++;
+                if (hits > 0) {
+                    covered++;
+                }
+            }
+        }
+        return new int[] { valid, covered };
+    }
+
+    public synchronized void writeLcov(File report) throws IOException {
+        report.getParentFile().mkdirs();
+        Writer out = new OutputStreamWriter(new FileOutputStream(report), "UTF-8");
+        try {
+            for (FileCoverage file : files) {
+                out.write("TN:\nSF:" + file.file.getPath() + "\n");
+                int found = 0, hit = 0;
+                for (Map.Entry<Integer, Integer> line : file.getLineHits().entrySet()) {
+                    out.write("DA:" + line.getKey() + "," + line.getValue() + "\n");
+                    found++;
+                    if (line.getValue() > 0) {
+                        hit++;
+                    }
+                }
+                out.write("LF:" + found + "\nLH:" + hit + "\nend_of_record\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public synchronized void writeCobertura(File report) throws IOException {
+        report.getParentFile().mkdirs();
+        int[] totals = getTotals();
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(report));
+            try {
+                XMLStreamWriter xml = outputFactory.createXMLStreamWriter(out, "UTF-8");
+                xml.writeStartDocument("UTF-8", "1.0");
+                xml.writeDTD("<!DOCTYPE coverage SYSTEM \"http://cobertura.sourceforge.net/xml/coverage-04.dtd\">");
+                xml.writeStartElement("coverage");
+                xml.writeAttribute("line-rate", rate(totals[1], totals[0]));
+                xml.writeAttribute("branch-rate", "0");
+                xml.writeAttribute("lines-covered", "" + totals[1]);
+                xml.writeAttribute("lines-valid", "" + totals[0]);
+                xml.writeAttribute("branches-covered", "0");
+                xml.writeAttribute("branches-valid", "0");
+                xml.writeAttribute("complexity", "0");
+                xml.writeAttribute("version", "testlol");
+                xml.writeAttribute("timestamp", "" + System.currentTimeMillis());
+                xml.writeStartElement("sources");
+                xml.writeStartElement("source");
+                xml.writeCharacters(basePathFile.getPath());
+                xml.writeEndElement();
+                xml.writeEndElement();
+                xml.writeStartElement("packages");
+                xml.writeStartElement("package");
+                xml.writeAttribute("name", "");
+                xml.writeAttribute("line-rate", rate(totals[1], totals[0]));
+                xml.writeAttribute("branch-rate", "0");
+                xml.writeAttribute("complexity", "0");
+                xml.writeStartElement("classes");
+                for (FileCoverage file : files) {
+                    writeClass(xml, file);
+                }
+                xml.writeEndElement();
+                xml.writeEndElement();
+                xml.writeEndElement();
+                xml.writeEndElement();
+                xml.writeEndDocument();
+                xml.close();
+            } finally {
+                out.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private void writeClass(XMLStreamWriter xml, FileCoverage file)
+            throws XMLStreamException {
+        String path = file.file.getPath().substring(basePath.length())
+                .replace(File.separatorChar, '/');
+        Map<Integer, Integer> hits = file.getLineHits();
+        int covered = 0;
+        for (int count : hits.values()) {
+            if (count > 0) {
+                covered++;
+            }
+        }
+        xml.writeStartElement("class");
+        xml.writeAttribute("name", path);
+        xml.writeAttribute("filename", path);
+        xml.writeAttribute("line-rate", rate(covered, hits.size()));
+        xml.writeAttribute("branch-rate", "0");
+        xml.writeAttribute("complexity", "0");
+        xml.writeEmptyElement("methods");
+        xml.writeStartElement("lines");
+        for (Map.Entry<Integer, Integer> line : hits.entrySet()) {
+            xml.writeEmptyElement("line");
+            xml.writeAttribute("number", "" + line.getKey());
+            xml.writeAttribute("hits", "" + line.getValue());
+            xml.writeAttribute("branch", "false");
+        }
+        xml.writeEndElement();
+        xml.writeEndElement();
+    }
+
+    private static String rate(int covered, int valid) {
+        return (valid > 0) ? String.format(Locale.ENGLISH, "%.4f",
+                (double) covered / valid) : "1";
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Records which files are loaded while a test file runs on the current
+ * thread. Files loaded by loaded files are recorded too, so the result is the
+ * test file's transitive inputs.
+ */
+public class DependencyRecorder {
+
+    private static final ThreadLocal<Set<File>> recording = new ThreadLocal<Set<File>>();
+
+    public static void start() {
+        recording.set(new TreeSet<File>());
+    }
+
+    public static void record(File file) {
+        Set<File> files = recording.get();
+        if (files != null) {
+            try {
+                files.add(file.getCanonicalFile());
+            } catch (IOException e) {
+                files.add(file.getAbsoluteFile());
+            }
+        }
+    }
+
+    public static Set<File> stop() {
+        Set<File> files = recording.get();
+        recording.remove();
+        return (files != null) ? files : Collections.<File> emptySet();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The messages between a ForkedWorker and the JVM it forked, which talk over
+ * the child's stdin and stdout. The parent first sends the configuration,
+ * then a RUN message for every test file. The child answers each with any
+ * number of LOG messages, then a RESULT or an ERROR. On EXIT, or when its
+ * stdin closes, the child sends what's left to report in an UNMATCHED message
+ * and exits.
+ */
+final class ForkProtocol {
+
+    static final int RUN = 1;
+    static final int EXIT = 2;
+
+    static final int LOG = 10;
+    static final int RESULT = 11;
+    static final int ERROR = 12;
+    static final int UNMATCHED = 13;
+
+    static final int DEBUG = 0;
+    static final int INFO = 1;
+    static final int WARN = 2;
+    static final int ERROR_LEVEL = 3;
+
+    /** The failed test file had a script error. */
+    static final int SCRIPT_ERROR = 0;
+    /** Anything else went wrong. */
+    static final int EXECUTION_ERROR = 1;
+
+    private ForkProtocol() {
+    }
+
+    /**
+     * Write a string which may be null or longer than writeUTF allows.
+     */
+    static void writeString(DataOutput out, String text) throws IOException {
+        if (text == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = text.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    static void writeStrings(DataOutput out, List<String> texts) throws IOException {
+        if (texts == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(texts.size());
+        for (String text : texts) {
+            writeString(out, text);
+        }
+    }
+
+    static List<String> readStrings(DataInput in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        List<String> texts = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            texts.add(readString(in));
+        }
+        return texts;
+    }
+
+    static String toString(CharSequence message, Throwable error) {
+        StringBuilder text = new StringBuilder();
+        if (message != null) {
+            text.append(message);
+        }
+        if (error != null) {
+            StringWriter trace = new StringWriter();
+            error.printStackTrace(new PrintWriter(trace));
+            if (text.length() > 0) {
+                text.append("\n");
+            }
+            text.append(trace);
+        }
+        return text.toString();
+    }
+}
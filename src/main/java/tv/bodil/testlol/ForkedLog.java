@@ -0,0 +1,116 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * The Log of a forked JVM, which sends everything to the ForkedWorker that
+ * forked it, to be logged by Maven. Maven decides which levels to show, but
+ * debug messages are only sent when the parent has debug enabled.
+ */
+public class ForkedLog implements Log {
+
+    private final DataOutputStream out;
+
+    private volatile boolean debugEnabled;
+
+    public ForkedLog(DataOutputStream out) {
+        this.out = out;
+    }
+
+    private void log(int level, CharSequence message, Throwable error) {
+        synchronized (out) {
+            try {
+                out.writeByte(ForkProtocol.LOG);
+                out.writeByte(level);
+                ForkProtocol.writeString(out, ForkProtocol.toString(message, error));
+                // Show it now, in case the JVM hangs or dies
+                out.flush();
+            } catch (IOException e) {
+                // The parent is gone, the next result won't get there either
+            }
+        }
+    }
+
+    public void setDebugEnabled(boolean debugEnabled) {
+        this.debugEnabled = debugEnabled;
+    }
+
+    public boolean isDebugEnabled() {
+        return debugEnabled;
+    }
+
+    public void debug(CharSequence content) {
+        if (debugEnabled) {
+            log(ForkProtocol.DEBUG, content, null);
+        }
+    }
+
+    public void debug(CharSequence content, Throwable error) {
+        if (debugEnabled) {
+            log(ForkProtocol.DEBUG, content, error);
+        }
+    }
+
+    public void debug(Throwable error) {
+        if (debugEnabled) {
+            log(ForkProtocol.DEBUG, null, error);
+        }
+    }
+
+    public boolean isInfoEnabled() {
+        return true;
+    }
+
+    public void info(CharSequence content) {
+        log(ForkProtocol.INFO, content, null);
+    }
+
+    public void info(CharSequence content, Throwable error) {
+        log(ForkProtocol.INFO, content, error);
+    }
+
+    public void info(Throwable error) {
+        log(ForkProtocol.INFO, null, error);
+    }
+
+    public boolean isWarnEnabled() {
+        return true;
+    }
+
+    public void warn(CharSequence content) {
+        log(ForkProtocol.WARN, content, null);
+    }
+
+    public void warn(CharSequence content, Throwable error) {
+        log(ForkProtocol.WARN, content, error);
+    }
+
+    public void warn(Throwable error) {
+        log(ForkProtocol.WARN, null, error);
+    }
+
+    public boolean isErrorEnabled() {
+        return true;
+    }
+
+    public void error(CharSequence content) {
+        log(ForkProtocol.ERROR_LEVEL, content, null);
+    }
+
+    public void error(CharSequence content, Throwable error) {
+        log(ForkProtocol.ERROR_LEVEL, content, error);
+    }
+
+    public void error(Throwable error) {
+        log(ForkProtocol.ERROR_LEVEL, null, error);
+    }
+}
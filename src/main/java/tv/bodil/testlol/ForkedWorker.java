@@ -0,0 +1,236 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.mozilla.javascript.EvaluatorException;
+
+/**
+ * Runs test files in a JVM of its own, which builds its own Shell and keeps
+ * it warm for the next file. If the forked JVM isn't to be reused, a new one
+ * is started for every file.
+ *
+ * Whatever the forked JVM logs is logged here, and what it writes to stderr is
+ * logged at info level. A forked JVM which doesn't answer within the timeout
+ * is killed, and the file it was running fails.
+ */
+public class ForkedWorker implements TestWorker {
+
+    private final List<String> command;
+    private final byte[] configuration;
+    private final boolean reuse;
+    private final long timeout;
+    private final Log log;
+
+    private Process process;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private Thread errorPump;
+    private Timer timer;
+    private volatile boolean timedOut;
+
+    /**
+     * @param command
+     *            the command line to start a JVM running ForkedWorkerMain.
+     * @param configuration
+     *            the configuration to send it when it starts.
+     * @param timeout
+     *            how long to wait for each file in ms, or 0 for ever.
+     */
+    public ForkedWorker(List<String> command, byte[] configuration, boolean reuse,
+            long timeout, Log log) {
+        this.command = command;
+        this.configuration = configuration;
+        this.reuse = reuse;
+        this.timeout = timeout;
+        this.log = log;
+    }
+
+    public TestResult run(File file, String path) throws MojoExecutionException,
+            IOException {
+        if (process == null) {
+            start();
+        }
+        long start = RunMetrics.now();
+        TimerTask kill = null;
+        if (timeout > 0) {
+            if (timer == null) {
+                timer = new Timer("testlol-fork-timeout", true);
+            }
+            final Process running = process;
+            timedOut = false;
+            kill = new TimerTask() {
+                @Override
+                public void run() {
+                    timedOut = true;
+                    running.destroy();
+                }
+            };
+            timer.schedule(kill, timeout);
+        }
+        try {
+            out.writeByte(ForkProtocol.RUN);
+            ForkProtocol.writeString(out, file.getPath());
+            ForkProtocol.writeString(out, path);
+            out.flush();
+            while (true) {
+                int message = in.readUnsignedByte();
+                if (message == ForkProtocol.LOG) {
+                    log(in.readUnsignedByte(), ForkProtocol.readString(in));
+                } else if (message == ForkProtocol.RESULT) {
+                    return TestResult.readFrom(in);
+                } else if (message == ForkProtocol.ERROR) {
+                    int type = in.readUnsignedByte();
+                    String error = ForkProtocol.readString(in);
+                    if (type == ForkProtocol.SCRIPT_ERROR) {
+                        throw new EvaluatorException(error);
+                    }
+                    throw new MojoExecutionException(error);
+                } else {
+                    throw new IOException("Unexpected message " + message + " from forked JVM");
+                }
+            }
+        } catch (IOException e) {
+            if (timedOut) {
+                stop();
+                TestResult result = new TestResult(path);
+                result.addTimeout("Forked JVM didn't finish " + path + " within " + timeout
+                        + " ms and was killed", RunMetrics.toMillis(RunMetrics.now() - start));
+                return result;
+            }
+            if (!(e instanceof EOFException)) {
+                throw e;
+            }
+            int status = stop();
+            throw new MojoExecutionException("Forked JVM exited with status " + status
+                    + " while running " + path);
+        } finally {
+            if (kill != null && !kill.cancel() && timedOut) {
+                // Killed just after it answered, so start afresh next time
+                stop();
+            }
+            if (!reuse) {
+                stop();
+            }
+        }
+    }
+
+    public void close() {
+        stop();
+        if (timer != null) {
+            timer.cancel();
+        }
+    }
+
+    private void start() throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(command);
+        log.debug("Forking " + command);
+        process = builder.start();
+        in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+        final BufferedReader errors = new BufferedReader(new InputStreamReader(
+                process.getErrorStream()));
+        errorPump = new Thread("testlol-fork-stderr") {
+            @Override
+            public void run() {
+                try {
+                    String line;
+                    while ((line = errors.readLine()) != null) {
+                        log.info(line);
+                    }
+                } catch (IOException e) {
+                    // The forked JVM is gone
+                }
+            }
+        };
+        errorPump.setDaemon(true);
+        errorPump.start();
+        out.write(configuration);
+        out.flush();
+    }
+
+    /**
+     * Ask the forked JVM to exit, collecting the XHR requests it couldn't
+     * answer from fixtures, and wait for it.
+     *
+     * @return the forked JVM's exit status, or -1 if it had to be killed.
+     */
+    private int stop() {
+        if (process == null) {
+            return 0;
+        }
+        Process stopping = process;
+        process = null;
+        try {
+            out.writeByte(ForkProtocol.EXIT);
+            out.flush();
+            while (true) {
+                int message = in.readUnsignedByte();
+                if (message == ForkProtocol.LOG) {
+                    log(in.readUnsignedByte(), ForkProtocol.readString(in));
+                } else if (message == ForkProtocol.UNMATCHED) {
+                    boolean used = in.readBoolean();
+                    List<String> unmatched = ForkProtocol.readStrings(in);
+                    XhrFixtures fixtures = XhrFixtures.getActive();
+                    if (fixtures != null) {
+                        fixtures.addUnmatched(unmatched, used);
+                    }
+                    break;
+                } else {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // Already gone
+        }
+        try {
+            int status = stopping.waitFor();
+            errorPump.join();
+            return status;
+        } catch (InterruptedException e) {
+            stopping.destroy();
+            Thread.currentThread().interrupt();
+            return -1;
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Nothing to flush to
+            }
+        }
+    }
+
+    private void log(int level, String message) {
+        switch (level) {
+        case ForkProtocol.DEBUG:
+            log.debug(message);
+            break;
+        case ForkProtocol.WARN:
+            log.warn(message);
+            break;
+        case ForkProtocol.ERROR_LEVEL:
+            log.error(message);
+            break;
+        default:
+            log.info(message);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.mozilla.javascript.RhinoException;
+
+/**
+ * The main class of a JVM forked by a ForkedWorker. Builds a Shell once, then
+ * runs the test files it's sent on it, one at a time, until told to exit.
+ *
+ * Stdout carries the messages to the parent, so anything else written to
+ * System.out goes to stderr instead.
+ */
+public class ForkedWorkerMain {
+
+    public static void main(String[] args) {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(FileDescriptor.out)));
+        System.setOut(System.err);
+        int status = 0;
+        try {
+            serve(in, out);
+        } catch (IOException e) {
+            e.printStackTrace();
+            status = 1;
+        }
+        System.exit(status);
+    }
+
+    private static void serve(DataInputStream in, DataOutputStream out)
+            throws IOException {
+        Testlol testlol = new Testlol();
+        testlol.setLog(new ForkedLog(out));
+        TestWorker worker = null;
+        Exception setUpError = null;
+        try {
+            testlol.readForkConfiguration(in);
+            testlol.configure();
+            worker = new ContextWorker(testlol.createContextFactory(), testlol, null);
+        } catch (Exception e) {
+            // Report it for every file, so the parent fails the right way
+            setUpError = e;
+        }
+        try {
+            int command;
+            while ((command = in.read()) == ForkProtocol.RUN) {
+                File file = new File(ForkProtocol.readString(in));
+                String path = ForkProtocol.readString(in);
+                if (setUpError != null) {
+                    writeError(out, setUpError);
+                    continue;
+                }
+                try {
+                    TestResult result = worker.run(file, path);
+                    synchronized (out) {
+                        out.writeByte(ForkProtocol.RESULT);
+                        result.writeTo(out);
+                        out.flush();
+                    }
+                } catch (Exception e) {
+                    writeError(out, e);
+                }
+            }
+        } finally {
+            if (worker != null) {
+                worker.close();
+            }
+        }
+        XhrFixtures fixtures = XhrFixtures.getActive();
+        List<String> unmatched = (fixtures != null) ? fixtures.getUnmatched() : Collections
+                .<String> emptyList();
+        synchronized (out) {
+            out.writeByte(ForkProtocol.UNMATCHED);
+            out.writeBoolean(fixtures != null && fixtures.isUsed());
+            ForkProtocol.writeStrings(out, unmatched);
+            out.flush();
+        }
+    }
+
+    private static void writeError(DataOutputStream out, Exception error)
+            throws IOException {
+        synchronized (out) {
+            out.writeByte(ForkProtocol.ERROR);
+            out.writeByte((error instanceof RhinoException) ? ForkProtocol.SCRIPT_ERROR
+                    : ForkProtocol.EXECUTION_ERROR);
+            ForkProtocol.writeString(out, (error.getMessage() != null) ? error.getMessage()
+                    : error.toString());
+            out.flush();
+        }
+    }
+}
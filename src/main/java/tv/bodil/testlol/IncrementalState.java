@@ -0,0 +1,178 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Remembers, between builds, which files each test file loaded and how it
+ * went, so test files whose inputs haven't changed since they last passed
+ * can be skipped and their previous report reused.
+ *
+ * Inputs are the test file and every file it loaded, directly or through
+ * other files. Anything else that can change the outcome, such as the
+ * plugin itself and the global files, goes into a fingerprint; when that
+ * changes, everything runs again.
+ */
+public class IncrementalState {
+
+    private static final String FINGERPRINT = "fingerprint";
+
+    private final File stateFile;
+    private final File reportCache;
+    private final String fingerprint;
+    private final Properties previous = new Properties();
+    private final Properties next = new Properties();
+    private final Map<File, String> stamps = new HashMap<File, String>();
+
+    public IncrementalState(File directory, String fingerprint)
+            throws IOException {
+        this.stateFile = new File(directory, "state.properties");
+        this.reportCache = new File(directory, "reports");
+        this.fingerprint = fingerprint;
+        if (stateFile.isFile()) {
+            InputStream in = new FileInputStream(stateFile);
+            try {
+                previous.load(in);
+            } finally {
+                in.close();
+            }
+            if (!fingerprint.equals(previous.getProperty(FINGERPRINT))) {
+                previous.clear();
+            }
+        }
+        next.setProperty(FINGERPRINT, fingerprint);
+    }
+
+    /**
+     * @return true if the test file passed last time, none of its inputs
+     *         have changed since, and its report is still around.
+     */
+    public boolean isUpToDate(String path) throws IOException {
+        String inputs = previous.getProperty(path + ".inputs");
+        if (inputs == null || !"0".equals(previous.getProperty(path + ".failed"))
+                || !getCachedReport(path).isFile()) {
+            return false;
+        }
+        int count = Integer.parseInt(inputs);
+        for (int i = 0; i < count; i++) {
+            File input = new File(previous.getProperty(path + ".input." + i));
+            String stamp = previous.getProperty(path + ".stamp." + i);
+            if (!stamp.equals(getStamp(input, stamp))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Keep the previous state for a test file which was skipped, and restore
+     * its report.
+     *
+     * @return the number of tests which passed last time.
+     */
+    public int reuse(String path, File reportPath) throws IOException {
+        String prefix = path + ".";
+        for (String key : previous.stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                next.setProperty(key, previous.getProperty(key));
+            }
+        }
+        copy(getCachedReport(path), new File(reportPath, getReportName(path)));
+        return Integer.parseInt(previous.getProperty(path + ".passed"));
+    }
+
+    public void record(TestResult result, File reportPath) throws IOException {
+        String path = result.getPath();
+        next.setProperty(path + ".passed", "" + result.getPassed());
+        next.setProperty(path + ".failed", "" + result.getFailed());
+        Set<File> inputs = result.getDependencies();
+        int i = 0;
+        for (File input : inputs) {
+            next.setProperty(path + ".input." + i, input.getPath());
+            next.setProperty(path + ".stamp." + i, getStamp(input, null));
+            i++;
+        }
+        next.setProperty(path + ".inputs", "" + i);
+        reportCache.mkdirs();
+        copy(new File(reportPath, getReportName(path)), getCachedReport(path));
+    }
+
+    public void save() throws IOException {
+        stateFile.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(stateFile);
+        try {
+            next.store(out, "Testlol incremental test state");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * A stamp is "modified:size:sha1". The content hash is only computed when
+     * the modification time or size differ from the known stamp, and is
+     * remembered for the rest of the build.
+     */
+    private String getStamp(File file, String known) throws IOException {
+        String stamp = stamps.get(file);
+        if (stamp != null) {
+            return stamp;
+        }
+        if (!file.isFile()) {
+            return "missing";
+        }
+        String quick = file.lastModified() + ":" + file.length() + ":";
+        if (known != null && known.startsWith(quick)) {
+            stamp = known;
+        } else {
+            String hash = ContentHash.of(file);
+            if (known != null && known.endsWith(":" + hash)) {
+                // Touched but not changed
+                stamp = known;
+            } else {
+                stamp = quick + hash;
+            }
+        }
+        stamps.put(file, stamp);
+        return stamp;
+    }
+
+    private File getCachedReport(String path) {
+        return new File(reportCache, getReportName(path));
+    }
+
+    private static String getReportName(String path) {
+        return "TEST-" + path + ".xml";
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[8192];
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, len);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -7,11 +7,27 @@
 package tv.bodil.testlol;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
@@ -19,16 +35,28 @@ import org.apache.maven.plugin.logging.Log;
 import com.googlecode.jslint4java.Issue;
 import com.googlecode.jslint4java.JSLint;
 import com.googlecode.jslint4java.JSLintBuilder;
-import com.googlecode.jslint4java.JSLintResult;
 import com.googlecode.jslint4java.Option;
 
 public class JSLintRunner {
     private List<File> sources = new LinkedList<File>();
     private final File basePath;
-    private JSLint jsLint;
+    private final String options;
+    private final Map<Option, String> parsedOptions = new LinkedHashMap<Option, String>();
+    private File cacheFile;
+
+    private static class FileLint {
+        final File file;
+        String path, key, source;
+        List<String> issues;
+        boolean cached;
+
+        FileLint(File file) {
+            this.file = file;
+        }
+    }
 
     public JSLintRunner(File basePath, String options) throws IOException, MojoExecutionException {
-        jsLint = new JSLintBuilder().fromDefault();
+        this.options = (options != null) ? options : "";
 
         if (options != null) {
             String[] optionsList = options.split(" +");
@@ -45,12 +73,33 @@ public class JSLintRunner {
                 if (o == null) {
                     throw new MojoExecutionException("Invalid JSLint option \"" + option + "\"");
                 }
-                jsLint.addOption(o, value);
+                parsedOptions.put(o, value);
             }
         }
 
         this.basePath = basePath;
         findSources(this.basePath);
+        Collections.sort(sources);
+    }
+
+    /**
+     * JSLint instances aren't thread safe, so every thread gets its own.
+     */
+    private JSLint createJSLint() throws IOException {
+        JSLint jsLint = new JSLintBuilder().fromDefault();
+        for (Map.Entry<Option, String> option : parsedOptions.entrySet()) {
+            jsLint.addOption(option.getKey(), option.getValue());
+        }
+        return jsLint;
+    }
+
+    /**
+     * Remember the issues found in each file, keyed on its path and content,
+     * the options and the JSLint version, so unchanged files aren't linted
+     * again by later builds.
+     */
+    public void setCacheFile(File cacheFile) {
+        this.cacheFile = cacheFile;
     }
 
     private Option getOption(String optName) {
@@ -73,25 +122,203 @@ public class JSLintRunner {
         }
     }
 
-    public int lint(Log log) throws IOException {
+    /**
+     * Lint all the sources, on up to the given number of threads, and log the
+     * issues file by file in path order.
+     *
+     * @return the number of issues found.
+     */
+    public int lint(Log log, int threadCount) throws IOException {
+        final Properties cache = loadCache();
+        final String version = getJSLintVersion();
+        final String pathPrefix = basePath.getCanonicalPath();
+        final FileLint[] files = new FileLint[sources.size()];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new FileLint(sources.get(i));
+        }
+
+        threadCount = Math.max(1, Math.min(threadCount, files.length));
+        if (threadCount == 1) {
+            JSLint jsLint = null;
+            for (FileLint file : files) {
+                if (lintCached(file, cache, version, pathPrefix) == null) {
+                    if (jsLint == null) {
+                        jsLint = createJSLint();
+                    }
+                    lint(jsLint, file);
+                }
+            }
+        } else {
+            final AtomicInteger next = new AtomicInteger();
+            ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+            List<Future<Object>> running = new ArrayList<Future<Object>>();
+            for (int i = 0; i < threadCount; i++) {
+                running.add(pool.submit(new Callable<Object>() {
+                    public Object call() throws IOException {
+                        JSLint jsLint = null;
+                        int i;
+                        while ((i = next.getAndIncrement()) < files.length) {
+                            if (lintCached(files[i], cache, version, pathPrefix) == null) {
+                                if (jsLint == null) {
+                                    jsLint = createJSLint();
+                                }
+                                lint(jsLint, files[i]);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            pool.shutdown();
+            try {
+                for (Future<Object> worker : running) {
+                    worker.get();
+                }
+            } catch (InterruptedException e) {
+                pool.shutdownNow();
+                throw new IOException("Interrupted while running JSLint");
+            } catch (ExecutionException e) {
+                next.set(files.length);
+                pool.shutdownNow();
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                } else if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IOException(e.getCause().toString());
+            }
+        }
+
+        Properties used = new Properties();
         int errors = 0;
-        String pathPrefix = basePath.getCanonicalPath();
-        for (File file : sources) {
-            String path = file.getCanonicalPath();
-            if (path.startsWith(pathPrefix)) {
-                path = path.substring(pathPrefix.length() + 1);
+        int cached = 0;
+        for (FileLint file : files) {
+            if (file.cached) {
+                cached++;
             }
-            FileReader in = new FileReader(file);
-            JSLintResult result = jsLint.lint(path, in);
-            List<Issue> issues = result.getIssues();
-            if (issues.size() > 0) {
-                errors += issues.size();
-                log.error("In file " + path + ":");
-                for (Issue issue : issues) {
-                    log.error("  " + issue.toString());
+            putCachedIssues(used, file.key, file.issues);
+            if (file.issues.size() > 0) {
+                errors += file.issues.size();
+                log.error("In file " + file.path + ":");
+                for (String issue : file.issues) {
+                    log.error("  " + issue);
                 }
             }
         }
+        log.debug("JSLint results reused from cache for " + cached + " of "
+                + files.length + " files");
+        saveCache(used);
         return errors;
     }
+
+    /**
+     * Read a file, work out its cache key and look it up in the cache.
+     *
+     * @return the cached issues, or null if the file must be linted.
+     */
+    private List<String> lintCached(FileLint file, Properties cache,
+            String version, String pathPrefix) throws IOException {
+        String path = file.file.getCanonicalPath();
+        if (path.startsWith(pathPrefix)) {
+            path = path.substring(pathPrefix.length() + 1);
+        }
+        file.path = path;
+        file.source = readSource(file.file);
+        file.key = new ContentHash().update(path).update(file.source)
+                .update(options).update(version).digest();
+        file.issues = getCachedIssues(cache, file.key);
+        file.cached = (file.issues != null);
+        if (file.cached) {
+            file.source = null;
+        }
+        return file.issues;
+    }
+
+    private void lint(JSLint jsLint, FileLint file) throws IOException {
+        List<String> issues = new LinkedList<String>();
+        for (Issue issue : jsLint.lint(file.path, file.source).getIssues()) {
+            issues.add(issue.toString());
+        }
+        file.issues = issues;
+        file.source = null;
+    }
+
+    private static String readSource(File file) throws IOException {
+        FileReader in = new FileReader(file);
+        try {
+            return ScriptLoader.readReader(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static List<String> getCachedIssues(Properties cache, String key) {
+        String count = cache.getProperty(key);
+        if (count == null) {
+            return null;
+        }
+        List<String> issues = new LinkedList<String>();
+        for (int i = 0; i < Integer.parseInt(count); i++) {
+            issues.add(cache.getProperty(key + "." + i));
+        }
+        return issues;
+    }
+
+    private static void putCachedIssues(Properties cache, String key,
+            List<String> issues) {
+        cache.setProperty(key, "" + issues.size());
+        int i = 0;
+        for (String issue : issues) {
+            cache.setProperty(key + "." + i++, issue);
+        }
+    }
+
+    private Properties loadCache() throws IOException {
+        Properties cache = new Properties();
+        if (cacheFile != null && cacheFile.isFile()) {
+            InputStream in = new FileInputStream(cacheFile);
+            try {
+                cache.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Only the entries used by this run are kept, so the cache doesn't grow
+     * with every edit.
+     */
+    private void saveCache(Properties cache) throws IOException {
+        if (cacheFile == null) {
+            return;
+        }
+        cacheFile.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(cacheFile);
+        try {
+            cache.store(out, "Testlol JSLint results");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String getJSLintVersion() throws IOException {
+        Properties pom = new Properties();
+        InputStream in = JSLint.class.getClassLoader().getResourceAsStream(
+                "META-INF/maven/com.googlecode.jslint4java/jslint4java/pom.properties");
+        if (in != null) {
+            try {
+                pom.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        String version = pom.getProperty("version", "unknown");
+        URL location = JSLint.class.getProtectionDomain().getCodeSource().getLocation();
+        if ("file".equals(location.getProtocol())) {
+            version += ":" + new File(location.getPath()).lastModified();
+        }
+        return version;
+    }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+/**
+ * Writes test results as Surefire style JUnit XML reports, one TEST-*.xml
+ * file per test file, streaming straight to disk without building a DOM.
+ * Attributes are written in the same order the DOM serializer used, so the
+ * reports stay compatible with Surefire report consumers, though not byte
+ * for byte the same: the XML declaration has no standalone attribute, and
+ * times always use a decimal point.
+ */
+public class ReportWriter {
+
+    private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+    private final File reportPath;
+    private final SimpleDateFormat timestamp = new SimpleDateFormat(
+            "yyyy-MM-dd'T'HH:mm:ss");
+
+    public ReportWriter(File reportPath) {
+        this.reportPath = reportPath;
+    }
+
+    public File getReportFile(String path) {
+        return new File(reportPath, "TEST-" + path + ".xml");
+    }
+
+    public void write(TestResult result) throws MojoExecutionException {
+        String path = result.getPath();
+        double totalTime = 0.0;
+        for (TestResult.Case test : result.getCases()) {
+            totalTime += test.getTime();
+        }
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(
+                    getReportFile(path)));
+            try {
+                XMLStreamWriter xml = outputFactory.createXMLStreamWriter(out, "UTF-8");
+                xml.writeStartDocument("UTF-8", "1.0");
+                xml.writeStartElement("testsuite");
+                xml.writeAttribute("failures", "" + result.getFailed());
+                xml.writeAttribute("name", path);
+                xml.writeAttribute("tests", "" + result.getTried());
+                xml.writeAttribute("time", formatTime(totalTime));
+                xml.writeAttribute("timestamp", timestamp.format(new Date()));
+                for (TestResult.Case test : result.getCases()) {
+                    writeTestCase(xml, path, test);
+                }
+                xml.writeEndElement();
+                xml.writeEndDocument();
+                xml.close();
+            } finally {
+                out.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new MojoExecutionException(e.getMessage());
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage());
+        }
+    }
+
+    private void writeTestCase(XMLStreamWriter xml, String path,
+            TestResult.Case test) throws XMLStreamException {
+        if (!test.isFailed()) {
+            xml.writeEmptyElement("testcase");
+            writeTestCaseAttributes(xml, path, test);
+            return;
+        }
+        xml.writeStartElement("testcase");
+        writeTestCaseAttributes(xml, path, test);
+        xml.writeStartElement("failure");
+        String msg = test.getMessage();
+        xml.writeAttribute("message", msg);
+        if (test.getFailureType() != null) {
+            xml.writeAttribute("type", test.getFailureType());
+        }
+        StringBuilder body = new StringBuilder();
+        body.append(msg + "\n");
+        if (test.getStackTrace() != null) {
+            for (String trace : test.getStackTrace()) {
+                body.append(trace + "\n");
+            }
+        }
+        xml.writeCharacters(body.toString());
+        xml.writeEndElement();
+        xml.writeEndElement();
+    }
+
+    private void writeTestCaseAttributes(XMLStreamWriter xml, String path,
+            TestResult.Case test) throws XMLStreamException {
+        xml.writeAttribute("classname", path);
+        xml.writeAttribute("name", test.getName());
+        xml.writeAttribute("time", formatTime(test.getTime()));
+    }
+
+    private static String formatTime(double seconds) {
+        // Report consumers expect a decimal point whatever the locale
+        return String.format(Locale.ENGLISH, "%.3f", seconds);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Collects timings for every phase of a test run, and every test file and
+ * test in it, and writes them out as JSON. Safe to use from several worker
+ * threads at once.
+ */
+public class RunMetrics {
+
+    private static class Phase {
+        int count;
+        long nanos;
+    }
+
+    private static class FileTiming {
+        final TestResult result;
+        final double reportTime;
+
+        FileTiming(TestResult result, double reportTime) {
+            this.result = result;
+            this.reportTime = reportTime;
+        }
+    }
+
+    private static class TestTiming {
+        final String path;
+        final TestResult.Case test;
+
+        TestTiming(String path, TestResult.Case test) {
+            this.path = path;
+            this.test = test;
+        }
+    }
+
+    private final Map<String, Phase> phases = new LinkedHashMap<String, Phase>();
+    private final List<FileTiming> files = new ArrayList<FileTiming>();
+
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    public static double toMillis(long nanos) {
+        return nanos / 1000000.0;
+    }
+
+    /**
+     * Add time spent in a phase. A phase which runs several times, such as
+     * setting up a context on every worker thread, adds up.
+     */
+    public synchronized void addPhase(String name, long nanos) {
+        Phase phase = phases.get(name);
+        if (phase == null) {
+            phase = new Phase();
+            phases.put(name, phase);
+        }
+        phase.count++;
+        phase.nanos += nanos;
+    }
+
+    public synchronized void addFile(TestResult result, long reportNanos) {
+        files.add(new FileTiming(result, toMillis(reportNanos)));
+        addPhase("report writing", reportNanos);
+    }
+
+    public synchronized void logSlowest(Log log, int count) {
+        if (count <= 0 || files.isEmpty()) {
+            return;
+        }
+        List<FileTiming> slowFiles = getSlowestFiles(count);
+        log.info("Slowest test files:");
+        for (FileTiming file : slowFiles) {
+            log.info(String.format(Locale.ENGLISH, "  %10.3f ms  %s",
+                    file.result.getRunTime(), file.result.getPath()));
+        }
+        List<TestTiming> slowTests = getSlowestTests(count);
+        if (!slowTests.isEmpty()) {
+            log.info("Slowest tests:");
+            for (TestTiming test : slowTests) {
+                log.info(String.format(Locale.ENGLISH, "  %10.3f ms  %s: %s()",
+                        test.test.getTime() * 1000.0, test.path, test.test
+                                .getName()));
+            }
+        }
+        log.info("");
+    }
+
+    private List<FileTiming> getSlowestFiles(int count) {
+        List<FileTiming> sorted = new ArrayList<FileTiming>(files);
+        Collections.sort(sorted, new Comparator<FileTiming>() {
+            public int compare(FileTiming a, FileTiming b) {
+                return Double.compare(b.result.getRunTime(), a.result.getRunTime());
+            }
+        });
+        return sorted.subList(0, Math.min(count, sorted.size()));
+    }
+
+    private List<TestTiming> getSlowestTests(int count) {
+        List<TestTiming> sorted = new ArrayList<TestTiming>();
+        for (FileTiming file : files) {
+            for (TestResult.Case test : file.result.getCases()) {
+                sorted.add(new TestTiming(file.result.getPath(), test));
+            }
+        }
+        Collections.sort(sorted, new Comparator<TestTiming>() {
+            public int compare(TestTiming a, TestTiming b) {
+                return Double.compare(b.test.getTime(), a.test.getTime());
+            }
+        });
+        return sorted.subList(0, Math.min(count, sorted.size()));
+    }
+
+    public synchronized void write(File target, int slowestCount) throws IOException {
+        target.getParentFile().mkdirs();
+        Writer out = new OutputStreamWriter(new FileOutputStream(target), "UTF-8");
+        try {
+            out.write("{\n  \"phases\": [");
+            String separator = "\n";
+            for (Map.Entry<String, Phase> phase : phases.entrySet()) {
+                out.write(separator + "    {\"name\": " + quote(phase.getKey())
+                        + ", \"count\": " + phase.getValue().count
+                        + ", \"ms\": " + number(toMillis(phase.getValue().nanos))
+                        + "}");
+                separator = ",\n";
+            }
+            out.write("\n  ],\n  \"files\": [");
+            separator = "\n";
+            for (FileTiming file : files) {
+                out.write(separator);
+                writeFile(out, file);
+                separator = ",\n";
+            }
+            out.write("\n  ],\n  \"slowestFiles\": [");
+            separator = "";
+            for (FileTiming slow : getSlowestFiles(slowestCount)) {
+                out.write(separator + quote(slow.result.getPath()));
+                separator = ", ";
+            }
+            out.write("],\n  \"slowestTests\": [");
+            separator = "";
+            for (TestTiming slow : getSlowestTests(slowestCount)) {
+                out.write(separator + quote(slow.path + ":" + slow.test.getName()));
+                separator = ", ";
+            }
+            out.write("]\n}\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeFile(Writer out, FileTiming file) throws IOException {
+        TestResult result = file.result;
+        out.write("    {\"path\": " + quote(result.getPath())
+                + ", \"ms\": " + number(result.getRunTime())
+                + ", \"evaluateMs\": " + number(result.getEvaluateTime())
+                + ", \"setUpMs\": " + number(result.getSetUpTime())
+                + ", \"tearDownMs\": " + number(result.getTearDownTime())
+                + ", \"reportMs\": " + number(file.reportTime)
+                + ", \"tests\": [");
+        String separator = "";
+        for (TestResult.Case test : result.getCases()) {
+            out.write(separator + "{\"name\": " + quote(test.getName())
+                    + ", \"ms\": " + number(test.getTime() * 1000.0)
+                    + ", \"failed\": " + test.isFailed() + "}");
+            separator = ", ";
+        }
+        out.write("]}");
+    }
+
+    static String number(double value) {
+        return String.format(Locale.ENGLISH, "%.3f", value);
+    }
+
+    static String quote(String value) {
+        StringBuilder out = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+            case '"':
+                out.append("\\\"");
+                break;
+            case '\\':
+                out.append("\\\\");
+                break;
+            case '\n':
+                out.append("\\n");
+                break;
+            case '\r':
+                out.append("\\r");
+                break;
+            case '\t':
+                out.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    out.append(String.format("\\u%04x", (int) c));
+                } else {
+                    out.append(c);
+                }
+            }
+        }
+        return out.append('"').toString();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.lang.ref.SoftReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+
+/**
+ * A thread safe cache of compiled scripts. Scripts are stored under an id,
+ * such as a file path or resource URL, together with a stamp describing the
+ * version of the source they were compiled from. A lookup with a different
+ * stamp is a miss, and the stale script is replaced when the new one is put.
+ *
+ * Compiled scripts hold no reference to the scope they were executed in, so
+ * they can be shared between Contexts, threads and mojo executions. Scripts
+ * compiled to classes do hold on to the application class loader their
+ * classes were defined under, though, which in a reactor build is the
+ * module's. Those are kept apart for each application class loader, and only
+ * softly, since they keep their class loader reachable: a module's classes
+ * can go once nothing uses them and memory runs short.
+ */
+public class ScriptCache {
+
+    private static class Entry {
+        final String stamp;
+        final Script script;
+
+        Entry(String stamp, Script script) {
+            this.stamp = stamp;
+            this.script = script;
+        }
+    }
+
+    private final String name;
+    private final ConcurrentMap<String, Entry> scripts = new ConcurrentHashMap<String, Entry>();
+    private final Map<ClassLoader, SoftReference<ConcurrentMap<String, Entry>>> classScripts =
+            new WeakHashMap<ClassLoader, SoftReference<ConcurrentMap<String, Entry>>>();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    public ScriptCache(String name) {
+        this.name = name;
+    }
+
+    public Script get(String id, String stamp) {
+        Entry entry = scripts.get(id);
+        if (entry == null || !entry.stamp.equals(stamp)) {
+            entry = getClassScripts().get(id);
+        }
+        if (entry != null && entry.stamp.equals(stamp)) {
+            hits.incrementAndGet();
+            return entry.script;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(String id, String stamp, Script script) {
+        if (isGenerated(script)) {
+            scripts.remove(id);
+            getClassScripts().put(id, new Entry(stamp, script));
+        } else {
+            getClassScripts().remove(id);
+            scripts.put(id, new Entry(stamp, script));
+        }
+    }
+
+    /**
+     * @return the scripts compiled to classes under the current Context's
+     *         application class loader.
+     */
+    private synchronized ConcurrentMap<String, Entry> getClassScripts() {
+        Context cx = Context.getCurrentContext();
+        ClassLoader loader = (cx != null) ? cx.getApplicationClassLoader() : null;
+        SoftReference<ConcurrentMap<String, Entry>> reference = classScripts.get(loader);
+        ConcurrentMap<String, Entry> loaderScripts = (reference != null) ? reference.get()
+                : null;
+        if (loaderScripts == null) {
+            loaderScripts = new ConcurrentHashMap<String, Entry>();
+            classScripts.put(loader, new SoftReference<ConcurrentMap<String, Entry>>(
+                    loaderScripts));
+        }
+        return loaderScripts;
+    }
+
+    /**
+     * @return true if the script's class was generated at runtime, rather
+     *         than being Rhino's interpreter or precompiled into the plugin.
+     */
+    private static boolean isGenerated(Script script) {
+        ClassLoader loader = script.getClass().getClassLoader();
+        return loader != null && loader != Script.class.getClassLoader()
+                && loader != ScriptCache.class.getClassLoader();
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        int size = scripts.size();
+        for (SoftReference<ConcurrentMap<String, Entry>> reference : classScripts.values()) {
+            ConcurrentMap<String, Entry> loaderScripts = reference.get();
+            if (loaderScripts != null) {
+                size += loaderScripts.size();
+            }
+        }
+        return name + " cache: " + size + " scripts, " + hits
+                + " hits, " + misses + " misses";
+    }
+}
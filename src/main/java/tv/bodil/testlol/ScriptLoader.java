@@ -1,29 +1,42 @@
 package tv.bodil.testlol;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Reader;
+import java.net.URL;
+import java.net.URLConnection;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.mozilla.javascript.Context;
-import org.mozilla.javascript.ContextFactory;
 import org.mozilla.javascript.Script;
 import org.mozilla.javascript.Scriptable;
-import org.mozilla.javascript.ScriptableObject;
 
 public class ScriptLoader {
 	
     private static final Pattern regex = Pattern.compile("/.*?/\\.\\.");
 
+    private static final String PRECOMPILED_PATH = "tv/bodil/testlol/js/";
+    private static final String PRECOMPILED_PREFIX = "precompiled:";
+    // The -opt the pom runs jsc with
+    static final int PRECOMPILED_LEVEL = 9;
+
+    private static final ScriptCache scriptCache = new ScriptCache("Compiled script");
+
+    private static final ConcurrentMap<String, File> extractedResources = new ConcurrentHashMap<String, File>();
+    private static volatile File resourceDirectory;
+
 	public static boolean isScript(File path) {
 		return path.isFile()
 				&& (path.getName().endsWith(".js")
@@ -44,7 +57,7 @@ public class ScriptLoader {
 		return tests;
 	}
 	
-	private static String readReader(Reader reader) throws IOException {
+	static String readReader(Reader reader) throws IOException {
 		BufferedReader in = new BufferedReader(reader);
 		StringBuffer out = new StringBuffer();
 		char[] buffer = new char[4096];
@@ -54,71 +67,238 @@ public class ScriptLoader {
 		return out.toString();
 	}
 	
-	private static String readScript(Reader reader, String name) throws IOException {
+	private static String readScript(Context cx, Reader reader, String name) throws IOException {
 		String script = readReader(reader);
-		if (name.endsWith(".coffee")) script = compileCoffeescript(script);
+		if (name.endsWith(".coffee")) script = CoffeeScriptCompiler.compile(cx, script);
 		return script;
 	}
-	
-	private static String compileCoffeescript(String script) throws IOException {
-		final ContextFactory contextFactory = new ContextFactory();
-		Context cx = contextFactory.enterContext();
-		ScriptableObject scope = cx.initStandardObjects();
-		InputStreamReader in = new InputStreamReader(loadClasspathResource(cx, "tv/bodil/testlol/js/coffee-script.js"));
-		cx.evaluateReader(scope, in, null, 1, null);
-		scope.put("compileme", scope, script);
-		return cx.evaluateString(scope, "CoffeeScript.compile(compileme)", null, 1, null).toString();
-	}
 
 	public static void evaluateScript(Context cx, Scriptable scope, File file, String path) throws IOException {
-		cx.evaluateString(scope, readScript(new FileReader(file), path), path, 1, null);
+		DependencyRecorder.record(file);
+		Reader in = new FileReader(file);
+		try {
+			String source = Coverage.instrument(cx, file, readScript(cx, in, path));
+			compile(cx, source, path, cx.getOptimizationLevel()).exec(cx, scope);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Compile a script at the given optimization level. Rhino can't generate
+	 * JVM methods larger than 64K, so scripts which fail to compile to bytecode
+	 * fall back to the interpreter. Genuine syntax errors fail there as well.
+	 */
+	public static Script compile(Context cx, String source, String name, int optimizationLevel) {
+		int contextLevel = cx.getOptimizationLevel();
+		cx.setOptimizationLevel(optimizationLevel);
+		try {
+			return cx.compileString(source, name, 1, null);
+		} catch (RuntimeException e) {
+			if (optimizationLevel < 0) {
+				throw e;
+			}
+			cx.setOptimizationLevel(-1);
+			return cx.compileString(source, name, 1, null);
+		} finally {
+			cx.setOptimizationLevel(contextLevel);
+		}
+	}
+
+	public static ScriptCache getScriptCache() {
+		return scriptCache;
+	}
+
+	/**
+	 * Compile a classpath resource, reusing an earlier compilation from this
+	 * JVM if the resource hasn't changed since.
+	 */
+	public static Script compileScript(Context cx, String path, int optimizationLevel) throws IOException {
+        // Classes precompiled by jsc are only used where the script would be
+        // compiled at the same level anyway. They don't count instructions
+        // either, so can't be stopped when running over budget.
+        if (optimizationLevel == PRECOMPILED_LEVEL
+                && cx.getInstructionObserverThreshold() == 0) {
+            Script precompiled = loadPrecompiledScript(path);
+            if (precompiled != null) {
+                return precompiled;
+            }
+        }
+        URL url = findClasspathResource(cx, path);
+        URLConnection connection = url.openConnection();
+        String stamp = connection.getLastModified() + ":" + getCompilationStamp(cx, optimizationLevel);
+        Script script = scriptCache.get(url.toExternalForm(), stamp);
+        if (script == null) {
+            Reader in = new InputStreamReader(connection.getInputStream());
+            try {
+                script = compile(cx, readScript(cx, in, path), "classpath:" + path, optimizationLevel);
+            } finally {
+                in.close();
+            }
+            scriptCache.put(url.toExternalForm(), stamp, script);
+        }
+        return script;
+	}
+
+	/**
+	 * Look for a class compiled from one of the bundled runtime scripts by
+	 * Rhino's jsc during the plugin build. The class name follows jsc's
+	 * naming, eg. env.rhino.js becomes tv.bodil.testlol.js.env_rhino.
+	 *
+	 * @return the script, or null if it isn't a bundled script or it wasn't
+	 *         precompiled.
+	 */
+	private static Script loadPrecompiledScript(String path) {
+		if (path.startsWith("/")) {
+			path = path.substring(1);
+		}
+		if (!path.startsWith(PRECOMPILED_PATH) || !path.endsWith(".js")
+				|| path.indexOf('/', PRECOMPILED_PATH.length()) >= 0) {
+			return null;
+		}
+		Script script = scriptCache.get(PRECOMPILED_PREFIX + path, "");
+		if (script != null) {
+			return script;
+		}
+		String name = path.substring(PRECOMPILED_PATH.length(), path.length() - 3);
+		StringBuilder className = new StringBuilder(PRECOMPILED_PATH.replace('/', '.'));
+		if (!Character.isJavaIdentifierStart(name.charAt(0))) {
+			className.append('_');
+		}
+		for (char c : name.toCharArray()) {
+			className.append(Character.isJavaIdentifierPart(c) ? c : '_');
+		}
+		try {
+			script = (Script) Class.forName(className.toString(), true,
+					ScriptLoader.class.getClassLoader()).newInstance();
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (InstantiationException e) {
+			return null;
+		} catch (IllegalAccessException e) {
+			return null;
+		} catch (LinkageError e) {
+			// Compiled against a different Rhino than the one we're running on
+			return null;
+		}
+		scriptCache.put(PRECOMPILED_PREFIX + path, "", script);
+		return script;
 	}
 
-	public static Script compileScript(Context cx, String path) throws IOException {
-        Reader in = new InputStreamReader(loadClasspathResource(cx, path));
-        return cx.compileString(readScript(in, path), "classpath:" + path, 1, null);
+	/**
+	 * Compile a script file, reusing an earlier compilation from this JVM if
+	 * the file hasn't been modified since.
+	 */
+	public static Script compileFile(Context cx, File file, int optimizationLevel) throws IOException {
+		String id = file.getCanonicalPath();
+		String stamp = file.lastModified() + ":" + file.length() + ":"
+				+ getCompilationStamp(cx, optimizationLevel) + Coverage.getStamp();
+		Script script = scriptCache.get(id, stamp);
+		if (script == null) {
+			Reader in = new FileReader(file);
+			try {
+				String source = Coverage.instrument(cx, file, readScript(cx, in, file.getName()));
+				script = compile(cx, source, file.getPath(), optimizationLevel);
+			} finally {
+				in.close();
+			}
+			scriptCache.put(id, stamp, script);
+		}
+		return script;
 	}
 
-    private static InputStream loadClasspathResource(Context cx, String path) throws IOException {
+	/**
+	 * Scripts compiled for a Context which observes instruction counts can't
+	 * be reused by one which doesn't, and vice versa.
+	 */
+	static String getCompilationStamp(Context cx, int optimizationLevel) {
+		return optimizationLevel
+				+ (cx.getInstructionObserverThreshold() > 0 ? ":observed" : "");
+	}
+
+    private static URL findClasspathResource(Context cx, String path) throws IOException {
         Matcher matcher = regex.matcher(path);
         while (matcher.find()) {
             path = path.replace(matcher.group(), "");
         }
-        InputStream inputStream = cx.getApplicationClassLoader().getResourceAsStream(path);
+        URL url = cx.getApplicationClassLoader().getResource(path);
         // In order to support both maven 2 and maven 3, we try to turn around the maven
         // 2 bug. The strategy is to try to load with the given path and if not found try
         // to load the same resource by without the first / (if the first character is a /)
-        if (inputStream == null) {
+        if (url == null) {
             if (path.startsWith("/")) {
                 path = path.substring(1); // Remove the first /
-                inputStream = cx.getApplicationClassLoader().getResourceAsStream(path);
+                url = cx.getApplicationClassLoader().getResource(path);
             }
         }
-        if (inputStream == null) {
+        if (url == null) {
             throw new IOException("Unable to load resource: " + path);
         }
-        return inputStream;
+        return url;
+    }
+
+    /**
+     * Where copyClasspathResource() extracts resources to. Without one,
+     * resources go to a directory under java.io.tmpdir.
+     */
+    public static void setResourceDirectory(File directory) {
+        resourceDirectory = directory;
     }
 
+    /**
+     * Extract a classpath resource to a file, so it can be opened by URL. Each
+     * version of a resource is only extracted once, to a directory named after
+     * its content, which this JVM and later builds reuse.
+     */
     public static File copyClasspathResource(Context cx, String path) throws IOException {
-        File source = new File(path);
-        File tempfile = File.createTempFile(source.getName(), ".tmp");
-        tempfile.deleteOnExit();
+        URL url = findClasspathResource(cx, path);
+        URLConnection connection = url.openConnection();
+        String id = url.toExternalForm() + ":" + connection.getLastModified();
+        File file = extractedResources.get(id);
+        if (file != null && file.isFile()) {
+            return file;
+        }
 
-        // In order to support both maven 2 and maven 3, we try to turn around the maven
-        // 2 bug. The strategy is to try to load with the given path and if not found try
-        // to load the same resource by without the first / (if the first character is a /)
+        byte[] content = readBytes(connection.getInputStream());
+        File directory = resourceDirectory;
+        if (directory == null) {
+            directory = new File(System.getProperty("java.io.tmpdir"), "testlol-resources");
+        }
+        directory = new File(directory, new ContentHash().update(content).digest());
+        file = new File(directory, new File(path).getName());
+        if (!file.isFile()) {
+            directory.mkdirs();
+            // Other threads and forked JVMs may be extracting it too
+            File temp = File.createTempFile(file.getName(), ".tmp", directory);
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(content);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                if (!file.isFile()) {
+                    throw new IOException("Unable to extract resource: " + path);
+                }
+            }
+        }
+        extractedResources.put(id, file);
+        return file;
+    }
 
-        BufferedReader in = new BufferedReader(new InputStreamReader(loadClasspathResource(cx, path)));
-        BufferedWriter out = new BufferedWriter(new FileWriter(tempfile));
-        char[] buf = new char[1024];
-        int len;
-        while ((len = in.read(buf)) > 0) {
-            out.write(buf, 0, len);
+    private static byte[] readBytes(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
         }
-        in.close();
-        out.close();
-        return tempfile;
     }
 
 }
@@ -18,20 +18,40 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.EvaluatorException;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.JavaScriptException;
+import org.mozilla.javascript.Script;
 import org.mozilla.javascript.ScriptRuntime;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
 import org.mozilla.javascript.WrappedException;
 
 @SuppressWarnings("serial")
 public class Shell extends ScriptableObject {
 
-    private final Testlol testlol;
+    // Not serialized with a snapshot, attached again when it's restored
+    private transient Testlol testlol;
+
+    private static final String[] FUNCTIONS = { "print", "load", "getClasspathResource",
+            "getLolTimer", "getLolNanoTimer", "readFile", "readUrl", "startTestBudget",
+            "stopTestBudget", "getCoverageCounters", "getEventLoopState", "resetEventLoop",
+            "addXhrFixture", "findXhrFixture" };
+
+    // The packages initStandardObjects() defines besides Packages itself
+    private static final String[] TOP_PACKAGES = { "java", "javax", "org", "com", "edu",
+            "net" };
+
+    private static final Object EVENT_LOOP_STATE = new Object();
+    private static final Object RUNNING_MOJO = new Object();
+
+    // Scripts compiled by load(), shared by every Shell in the JVM
+    private static final ScriptCache loadCache = new ScriptCache("load()");
 
     @Override
     public String getClassName() {
@@ -42,8 +62,35 @@ public class Shell extends ScriptableObject {
         super();
         this.testlol = testlol;
         cx.initStandardObjects(this);
-        String[] names = { "print", "load", "getClasspathResource", "getLolTimer", "readFile", "readUrl" };
-        defineFunctionProperties(names, Shell.class, ScriptableObject.DONTENUM);
+        defineFunctionProperties(FUNCTIONS, Shell.class, ScriptableObject.DONTENUM);
+        defineProps(cx, testlol);
+    }
+
+    /**
+     * A Shell for one module on top of a base Shell, which already has Env.js
+     * and JsUnit loaded. It holds the module's own globals, and its own view
+     * of the Java packages, since the base only sees the plugin's classes.
+     */
+    public Shell(Testlol testlol, Context cx, Shell base) {
+        super();
+        this.testlol = testlol;
+        setPrototype(base);
+        setParentScope(null);
+        defineFunctionProperties(FUNCTIONS, Shell.class, ScriptableObject.DONTENUM);
+        defineProps(cx, testlol);
+        // testinit.js set this from the module which built the base
+        put("basePath", this, testlol.getBasePath() + "/");
+        Function packages = (Function) ScriptableObject.getProperty(base, "Packages");
+        Scriptable modulePackages = packages.construct(cx, this, new Object[] { Context
+                .javaToJS(cx.getApplicationClassLoader(), this) });
+        defineProperty("Packages", modulePackages, ScriptableObject.DONTENUM);
+        for (String name : TOP_PACKAGES) {
+            defineProperty(name, ScriptableObject.getProperty(modulePackages, name),
+                    ScriptableObject.DONTENUM);
+        }
+    }
+
+    private void defineProps(Context cx, Testlol testlol) {
         Scriptable props = cx.newObject(this);
         props.put("testSuite", props, Context.javaToJS(testlol.getTestSuite(),
                 this));
@@ -52,6 +99,23 @@ public class Shell extends ScriptableObject {
         this.defineProperty("_testlol", props, ScriptableObject.DONTENUM);
     }
 
+    /**
+     * Attach a Shell restored from a snapshot, or a base Shell kept from an
+     * earlier execution, to the running mojo.
+     */
+    void attach(Testlol testlol) {
+        this.testlol = testlol;
+    }
+
+    /**
+     * Log what's printed in the given Context from a Shell without a mojo of
+     * its own, such as a base Shell shared by several modules, to the given
+     * mojo.
+     */
+    static void attach(Context cx, Testlol testlol) {
+        cx.putThreadLocal(RUNNING_MOJO, testlol);
+    }
+
     public static Shell getShell(Scriptable thisObj) {
         Shell shell = null;
         ScriptableObject scope = (ScriptableObject) getTopLevelScope(thisObj);
@@ -73,8 +137,11 @@ public class Shell extends ScriptableObject {
             // Convert the arbitrary JavaScript value into a string form.
             out.append(Context.toString(args[i]));
         }
-        Shell shell = getShell(thisObj);
-        shell.testlol.getLog().info(out.toString());
+        Testlol testlol = getShell(thisObj).testlol;
+        if (testlol == null) {
+            testlol = (Testlol) cx.getThreadLocal(RUNNING_MOJO);
+        }
+        testlol.getLog().info(out.toString());
     }
 
     public static void load(Context cx, Scriptable thisObj, Object[] args,
@@ -104,36 +171,47 @@ public class Shell extends ScriptableObject {
      *            the name of the file to compile, or null for interactive mode.
      */
     private void processSource(Context cx, String filename, Scriptable scope) {
-        Reader in = null;
+        URL url = null;
+        File file = null;
         if (filename.startsWith("classpath:")) {
             String path = filename.substring(10);
-            InputStream resourceAsStream = getClass().getClassLoader().getResourceAsStream(path);
-            if (resourceAsStream == null) {
+            url = getClass().getClassLoader().getResource(path);
+            if (url == null) {
                 Context.reportError("Couldn't open classpath resource \"" + path + "\".");
                 return;
             }
-            in = new InputStreamReader(resourceAsStream);
         } else {
             try {
-                in = new InputStreamReader(new URL(filename).openStream());
+                url = new URL(filename);
+                if ("file".equals(url.getProtocol())) {
+                    file = new File(url.getPath());
+                }
             } catch (MalformedURLException e) {
-                try {
-                    in = new FileReader(filename);
-                } catch (FileNotFoundException e1) {
+                file = new File(filename);
+                if (!file.isFile()) {
                     Context.reportError("Couldn't open file \"" + filename + "\".");
                     return;
                 }
-            } catch (IOException e) {
-                Context.reportError("Couldn't open URL \"" + filename + "\".");
-                return;
             }
+            if (file != null) {
+                DependencyRecorder.record(file);
+            }
+        }
+
+        Script script;
+        try {
+            script = compileSource(cx, filename, url, file);
+        } catch (IOException e) {
+            Context.reportError("Couldn't open " + (file != null ? "file" : "URL")
+                    + " \"" + filename + "\".");
+            return;
         }
 
         try {
             // Here we evalute the entire contents of the file as
             // a script. Text is printed only if the print() function
             // is called.
-            cx.evaluateReader(getTopLevelScope(scope), in, filename, 1, null);
+            script.exec(cx, getTopLevelScope(scope));
         } catch (WrappedException we) {
             System.err.println(we.getWrappedException().toString());
             we.printStackTrace();
@@ -141,15 +219,59 @@ public class Shell extends ScriptableObject {
             System.err.println("js: " + ee.getMessage());
         } catch (JavaScriptException jse) {
             System.err.println("js: " + jse.getMessage());
-        } catch (IOException ioe) {
-            System.err.println(ioe.toString());
-        } finally {
-            try {
-                in.close();
-            } catch (IOException ioe) {
-                System.err.println(ioe.toString());
+        }
+    }
+
+    /**
+     * Compile a file or URL for load(), reusing an earlier compilation if the
+     * file or classpath resource hasn't changed since. Other URLs are
+     * compiled every time.
+     */
+    private static Script compileSource(Context cx, String filename, URL url,
+            File file) throws IOException {
+        String id = null, stamp = null;
+        URLConnection connection = null;
+        if (file != null) {
+            id = file.getCanonicalPath();
+            stamp = file.lastModified() + ":" + file.length();
+        } else if ("jar".equals(url.getProtocol()) || "file".equals(url.getProtocol())) {
+            connection = url.openConnection();
+            id = url.toExternalForm();
+            stamp = connection.getLastModified() + ":" + connection.getContentLength();
+        }
+        Script script = null;
+        if (id != null) {
+            // Stack traces name the script as it was loaded
+            id = filename + " " + id;
+            stamp += ":" + ScriptLoader.getCompilationStamp(cx, cx.getOptimizationLevel())
+                    + Coverage.getStamp();
+            script = loadCache.get(id, stamp);
+            if (script != null) {
+                return script;
             }
         }
+
+        Reader in;
+        if (file != null) {
+            in = new FileReader(file);
+        } else {
+            in = new InputStreamReader((connection != null) ? connection.getInputStream()
+                    : url.openStream());
+        }
+        try {
+            String source = Coverage.instrument(cx, file, ScriptLoader.readReader(in));
+            script = ScriptLoader.compile(cx, source, filename, cx.getOptimizationLevel());
+        } finally {
+            in.close();
+        }
+        if (id != null) {
+            loadCache.put(id, stamp, script);
+        }
+        return script;
+    }
+
+    public static ScriptCache getLoadCache() {
+        return loadCache;
     }
 
     public static long getLolTimer(Context cx, Scriptable thisObj, Object[] args,
@@ -157,6 +279,119 @@ public class Shell extends ScriptableObject {
         return Calendar.getInstance().getTimeInMillis();
     }
 
+    /**
+     * A high resolution timer, in milliseconds with a fractional part. Only
+     * useful for measuring intervals.
+     */
+    public static double getLolNanoTimer(Context cx, Scriptable thisObj, Object[] args,
+            Function funObj) {
+        return RunMetrics.toMillis(System.nanoTime());
+    }
+
+    public static void startTestBudget(Context cx, Scriptable thisObj,
+            Object[] args, Function funObj) {
+        BudgetContextFactory.startTest(cx, Context.toString(args[0]));
+    }
+
+    /**
+     * @return a message if the test ran over its budget, or null.
+     */
+    public static String stopTestBudget(Context cx, Scriptable thisObj,
+            Object[] args, Function funObj) {
+        return BudgetContextFactory.stopTest(cx);
+    }
+
+    /**
+     * The coverage counters of an instrumented file.
+     */
+    public static Object getCoverageCounters(Context cx, Scriptable thisObj,
+            Object[] args, Function funObj) {
+        return Context.javaToJS(Coverage.getCounters((int) Context.toNumber(args[0])),
+                getTopLevelScope(thisObj));
+    }
+
+    /**
+     * The timers and clock of eventloop.js. They belong to the Context rather
+     * than the Shell, so threads sharing a Shell each have their own.
+     */
+    public static Object getEventLoopState(Context cx, Scriptable thisObj,
+            Object[] args, Function funObj) {
+        Object state = cx.getThreadLocal(EVENT_LOOP_STATE);
+        if (state == null) {
+            state = cx.newObject(getShell(thisObj));
+            cx.putThreadLocal(EVENT_LOOP_STATE, state);
+        }
+        return state;
+    }
+
+    public static void resetEventLoop(Context cx, Scriptable thisObj,
+            Object[] args, Function funObj) {
+        resetEventLoop(cx);
+    }
+
+    /**
+     * Drop every timer left by the last test file, and set the clock back.
+     */
+    static void resetEventLoop(Context cx) {
+        cx.removeThreadLocal(EVENT_LOOP_STATE);
+    }
+
+    /**
+     * Answer XMLHttpRequests for a method and URL with a canned response until
+     * the test file ends: addXhrFixture(method, url, status, body, headers).
+     */
+    public static void addXhrFixture(Context cx, Scriptable thisObj,
+            Object[] args, Function funObj) {
+        if (args.length < 2) {
+            throw Context.reportRuntimeError("addXhrFixture() needs a method and a URL");
+        }
+        int status = (args.length > 2 && args[2] != Undefined.instance) ? (int) Context
+                .toNumber(args[2]) : 200;
+        String body = (args.length > 3 && args[3] != Undefined.instance) ? Context
+                .toString(args[3]) : "";
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        String url = Context.toString(args[1]);
+        headers.put("Content-Type", XhrFixtures.getContentType(url.replaceFirst("\\?.*", "")));
+        if (args.length > 4 && args[4] instanceof Scriptable) {
+            Scriptable object = (Scriptable) args[4];
+            for (Object id : object.getIds()) {
+                String name = Context.toString(id);
+                headers.put(name, Context.toString(ScriptableObject.getProperty(object, name)));
+            }
+        }
+        try {
+            XhrFixtures.getLocal(cx).add(Context.toString(args[0]), url,
+                    new XhrFixtures.Response(status, headers, body.getBytes("UTF-8")));
+        } catch (IOException e) {
+            throw new WrappedException(e);
+        }
+    }
+
+    /**
+     * @return the canned response to an XMLHttpRequest, as an object with
+     *         status, headers and text, or null if there's none.
+     */
+    public static Object findXhrFixture(Context cx, Scriptable thisObj,
+            Object[] args, Function funObj) {
+        String base = (args.length > 2 && args[2] != null && args[2] != Undefined.instance) ? Context
+                .toString(args[2]) : null;
+        XhrFixtures.Response response = XhrFixtures.find(cx, Context.toString(args[0]),
+                Context.toString(args[1]), base);
+        if (response == null) {
+            return null;
+        }
+        Scriptable scope = getTopLevelScope(thisObj);
+        Scriptable result = cx.newObject(scope);
+        Scriptable headers = cx.newObject(scope);
+        for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+            headers.put(header.getKey(), headers, header.getValue());
+        }
+        result.put("status", result, response.getStatus());
+        result.put("headers", result, headers);
+        result.put("text", result, response.getText());
+        return result;
+    }
+
     // Nicked a few methods from the Rhino shell source to clone readFile/readUrl functions
     
     public static Object readFile(Context cx, Scriptable thisObj,
@@ -194,6 +429,9 @@ public class Shell extends ScriptableObject {
         try {
             if (!urlIsFile) {
                 URL urlObj = new URL(filePath);
+                if ("file".equals(urlObj.getProtocol())) {
+                    DependencyRecorder.record(new File(urlObj.getPath()));
+                }
                 URLConnection uc = urlObj.openConnection();
                 is = uc.getInputStream();
                 chunkLength = uc.getContentLength();
@@ -207,6 +445,8 @@ public class Shell extends ScriptableObject {
                 }
             } else {
                 File f = new File(filePath);
+                // Recorded even if it's missing, so creating it counts
+                DependencyRecorder.record(f);
                 if (!f.exists()) {
                     throw new FileNotFoundException("File not found: "
                             + filePath);
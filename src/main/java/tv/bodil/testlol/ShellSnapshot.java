@@ -0,0 +1,160 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.apache.maven.plugin.logging.Log;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.serialize.ScriptableInputStream;
+import org.mozilla.javascript.serialize.ScriptableOutputStream;
+
+/**
+ * Keeps a serialized copy of a fully initialised Shell, with Env.js, JsUnit
+ * and the global files loaded, so later runs can read it back instead of
+ * running all of that again.
+ *
+ * The snapshot file starts with a key, and is only used while the key is the
+ * same. Not every Shell can be serialized: Env.js may hold on to Java objects
+ * which can't be, and scripts compiled to classes at runtime can't be loaded
+ * again by another run. When a Shell can't be serialized, the snapshot file
+ * only records that, so the next runs don't try again until the key changes.
+ * A snapshot is read back once when it's written, and only kept if that
+ * works.
+ *
+ * Env.js's own reference to the Context it was loaded in is dropped by
+ * testinit.js, so the Shell doesn't hold on to it.
+ */
+public class ShellSnapshot {
+
+    private final File file;
+    private boolean saved;
+
+    public ShellSnapshot(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the Shell from the snapshot, or null if there's no snapshot for
+     *         the given key or it couldn't be read.
+     */
+    public Shell restore(Context cx, String key, Testlol testlol, Log log) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            Shell shell = read(file, key, cx);
+            if (shell == null) {
+                return null;
+            }
+            shell.attach(testlol);
+            synchronized (this) {
+                saved = true;
+            }
+            return shell;
+        } catch (IOException e) {
+            log.debug("Couldn't read Shell snapshot " + file + ": " + e);
+        } catch (ClassNotFoundException e) {
+            log.debug("Couldn't read Shell snapshot " + file + ": " + e);
+        } catch (RuntimeException e) {
+            log.debug("Couldn't read Shell snapshot " + file + ": " + e);
+        }
+        return null;
+    }
+
+    /**
+     * Write a snapshot of the given Shell under the given key, or note that
+     * it can't be serialized. Only the first Shell of a run is written.
+     */
+    public synchronized void save(Context cx, String key, Shell shell, Log log) {
+        if (saved) {
+            return;
+        }
+        saved = true;
+        file.getParentFile().mkdirs();
+        File temp = null;
+        try {
+            // Forked JVMs may be writing the same snapshot
+            temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            try {
+                write(temp, key, true, cx, shell);
+                // Writing can succeed where reading back fails, for instance
+                // on classes generated at runtime, so make sure it can be
+                if (read(temp, key, cx) == null) {
+                    throw new IOException("The snapshot didn't read back");
+                }
+            } catch (IOException e) {
+                log.debug("Couldn't serialize the Shell, it will be built from scratch: " + e);
+                write(temp, key, false, cx, null);
+            } catch (ClassNotFoundException e) {
+                log.debug("Couldn't serialize the Shell, it will be built from scratch: " + e);
+                write(temp, key, false, cx, null);
+            } catch (RuntimeException e) {
+                log.debug("Couldn't serialize the Shell, it will be built from scratch: " + e);
+                write(temp, key, false, cx, null);
+            }
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Couldn't rename " + temp + " to " + file);
+            }
+        } catch (IOException e) {
+            log.warn("Couldn't write Shell snapshot " + file + ": " + e.getMessage());
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the Shell in a snapshot file, or null if the file has another
+     *         key or only records that the Shell couldn't be serialized.
+     */
+    private static Shell read(File file, String key, Context cx) throws IOException,
+            ClassNotFoundException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (!key.equals(in.readUTF()) || !in.readBoolean()) {
+                return null;
+            }
+            ObjectInputStream objects = new ScriptableInputStream(in,
+                    cx.initStandardObjects());
+            return (Shell) objects.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(File file, String key, boolean serializable,
+            Context cx, Shell shell) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        try {
+            out.writeUTF(key);
+            out.writeBoolean(serializable);
+            if (serializable) {
+                // Exclude the standard objects of a scope of its own, rather
+                // than the Shell, so the Shell itself is written
+                ObjectOutputStream objects = new ScriptableOutputStream(out,
+                        cx.initStandardObjects());
+                objects.writeObject(shell);
+                objects.flush();
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
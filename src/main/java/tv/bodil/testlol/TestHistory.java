@@ -0,0 +1,115 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Remembers how long each test file took and whether it failed the last time
+ * it ran, so the next run can start with the slowest files, to keep threads
+ * busy until the end, or with the files which failed, to report them sooner.
+ *
+ * Durations are averaged over runs, weighing the latest run by half.
+ */
+public class TestHistory {
+
+    private final File file;
+    private final Properties history = new Properties();
+
+    public TestHistory(File file) throws IOException {
+        this.file = file;
+        if (file.isFile()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                history.load(in);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * @return the average time the test file took to run in ms, or -1 if it
+     *         hasn't run before.
+     */
+    public double getDuration(String path) {
+        String duration = history.getProperty(path + ".duration");
+        try {
+            return (duration != null) ? Double.parseDouble(duration) : -1.0;
+        } catch (NumberFormatException e) {
+            return -1.0;
+        }
+    }
+
+    public boolean hasFailed(String path) {
+        return "true".equals(history.getProperty(path + ".failed"));
+    }
+
+    public void record(TestResult result) {
+        String path = result.getPath();
+        double duration = result.getRunTime();
+        double previous = getDuration(path);
+        if (previous >= 0.0) {
+            duration = (previous + duration) / 2.0;
+        }
+        history.setProperty(path + ".duration", RunMetrics.number(duration));
+        history.setProperty(path + ".failed", "" + (result.getFailed() > 0));
+    }
+
+    public void save() throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            history.store(out, "Testlol test history");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Work out the order to run test files in. Files which failed last time
+     * come first if failedFirst is set, then the longest running files if
+     * longestFirst is set, with files which haven't run before counting as
+     * the longest. Files which are otherwise equal keep their order.
+     *
+     * @return indexes into the given paths, in the order to run them.
+     */
+    public List<Integer> order(final List<String> paths,
+            final boolean longestFirst, final boolean failedFirst) {
+        List<Integer> order = new ArrayList<Integer>();
+        final double[] durations = new double[paths.size()];
+        final boolean[] failed = new boolean[paths.size()];
+        for (int i = 0; i < paths.size(); i++) {
+            order.add(i);
+            double duration = getDuration(paths.get(i));
+            durations[i] = (duration < 0.0) ? Double.MAX_VALUE : duration;
+            failed[i] = hasFailed(paths.get(i));
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                if (failedFirst && failed[a] != failed[b]) {
+                    return failed[a] ? -1 : 1;
+                }
+                if (longestFirst) {
+                    return Double.compare(durations[b], durations[a]);
+                }
+                return 0;
+            }
+        });
+        return order;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeJavaObject;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * The outcome of running a single test file, copied out of the JavaScript
+ * scope so it can outlive the Context it was produced in.
+ */
+public class TestResult {
+
+    public static class Case {
+        private final String name;
+        private final double time;
+        private String failureType;
+        private String message;
+        private List<String> stackTrace;
+        private boolean failed;
+
+        public Case(String name, double time) {
+            this.name = name;
+            this.time = time;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the time spent running the test, in seconds.
+         */
+        public double getTime() {
+            return time;
+        }
+
+        public boolean isFailed() {
+            return failed;
+        }
+
+        public String getFailureType() {
+            return failureType;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * @return the script stack trace with classpath frames removed, or
+         *         null if the failure didn't carry one.
+         */
+        public List<String> getStackTrace() {
+            return stackTrace;
+        }
+
+        void setFailure(String type, String message, List<String> stackTrace) {
+            this.failed = true;
+            this.failureType = type;
+            this.message = message;
+            this.stackTrace = stackTrace;
+        }
+    }
+
+    private final String path;
+    private final List<Case> cases = new LinkedList<Case>();
+    private int tried, passed, failed;
+    private Set<File> dependencies = Collections.emptySet();
+    private double evaluateTime, setUpTime, tearDownTime, runTime;
+
+    public TestResult(String path) {
+        this.path = path;
+    }
+
+    /**
+     * Read the results left behind by testrunner.js in a test scope.
+     */
+    public static TestResult fromScope(String path, Scriptable testScope) {
+        TestResult result = new TestResult(path);
+        if (!testScope.has("details", testScope)) {
+            // The test runner never got to run
+            return result;
+        }
+        result.tried = (Integer) Context.jsToJava(testScope.get("tried",
+                testScope), Integer.class);
+        result.passed = (Integer) Context.jsToJava(testScope.get("passed",
+                testScope), Integer.class);
+        result.failed = (Integer) Context.jsToJava(testScope.get("failed",
+                testScope), Integer.class);
+        result.setUpTime = Context.toNumber(testScope.get("setUpTime", testScope));
+        result.tearDownTime = Context.toNumber(testScope.get("tearDownTime",
+                testScope));
+        Scriptable details = (Scriptable) testScope.get("details", testScope);
+        for (Object id : details.getIds()) {
+            String name = Context.toString(id);
+            ScriptableObject detail = (ScriptableObject) details.get(name,
+                    details);
+            Double time = (Double) Context.jsToJava(detail.get("time", detail),
+                    Double.class);
+            Case testCase = new Case(name, time / 1000.0);
+            if (detail.has("failure", detail)) {
+                readFailure(testCase, detail.get("exception", detail));
+            }
+            result.cases.add(testCase);
+        }
+        return result;
+    }
+
+    private static void readFailure(Case testCase, Object exception) {
+        if (!(exception instanceof Scriptable)) {
+            testCase.setFailure(null, Context.toString(exception), null);
+            return;
+        }
+        Scriptable error = (Scriptable) exception;
+        String type = null;
+        String msg;
+        if (error.has("isTimeout", error)) {
+            type = "Timeout";
+            msg = Context.toString(error.get("message", error));
+        } else if (error.has("isJsUnitException", error)) {
+            type = "JsUnitException";
+            msg = Context.toString(error.get("jsUnitMessage", error));
+        } else if (error.has("rhinoException", error)) {
+            type = Context.toString(error.get("name", error));
+            msg = type + ": " + Context.toString(error.get("message", error));
+        } else {
+            msg = Context.toString(error);
+        }
+        List<String> stack = null;
+        Object stackWrap = error.get("stackTrace", error);
+        if (stackWrap instanceof NativeJavaObject) {
+            stackWrap = ((NativeJavaObject) stackWrap).unwrap();
+        }
+        if (stackWrap instanceof String) {
+            stack = new LinkedList<String>();
+            for (String trace : ((String) stackWrap).split("\n")) {
+                if (!isRuntimeFrame(trace)) {
+                    stack.add(trace);
+                }
+            }
+        }
+        testCase.setFailure(type, msg, stack);
+    }
+
+    /**
+     * Frames from the bundled runtime are noise in test failures. They carry
+     * the classpath: source name when loaded from source, and the resource
+     * path when running from the classes precompiled by jsc.
+     */
+    private static boolean isRuntimeFrame(String trace) {
+        return trace.contains("classpath:/")
+                || trace.contains("at tv/bodil/testlol/js/");
+    }
+
+    /**
+     * Write the result for a ForkedWorker to read back with readFrom().
+     */
+    void writeTo(DataOutput out) throws IOException {
+        ForkProtocol.writeString(out, path);
+        out.writeInt(tried);
+        out.writeInt(passed);
+        out.writeInt(failed);
+        out.writeDouble(evaluateTime);
+        out.writeDouble(setUpTime);
+        out.writeDouble(tearDownTime);
+        out.writeDouble(runTime);
+        out.writeInt(dependencies.size());
+        for (File dependency : dependencies) {
+            ForkProtocol.writeString(out, dependency.getPath());
+        }
+        out.writeInt(cases.size());
+        for (Case testCase : cases) {
+            ForkProtocol.writeString(out, testCase.name);
+            out.writeDouble(testCase.time);
+            out.writeBoolean(testCase.failed);
+            if (testCase.failed) {
+                ForkProtocol.writeString(out, testCase.failureType);
+                ForkProtocol.writeString(out, testCase.message);
+                ForkProtocol.writeStrings(out, testCase.stackTrace);
+            }
+        }
+    }
+
+    static TestResult readFrom(DataInput in) throws IOException {
+        TestResult result = new TestResult(ForkProtocol.readString(in));
+        result.tried = in.readInt();
+        result.passed = in.readInt();
+        result.failed = in.readInt();
+        result.evaluateTime = in.readDouble();
+        result.setUpTime = in.readDouble();
+        result.tearDownTime = in.readDouble();
+        result.runTime = in.readDouble();
+        int size = in.readInt();
+        Set<File> dependencies = new TreeSet<File>();
+        for (int i = 0; i < size; i++) {
+            dependencies.add(new File(ForkProtocol.readString(in)));
+        }
+        result.dependencies = dependencies;
+        size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            Case testCase = new Case(ForkProtocol.readString(in), in.readDouble());
+            if (in.readBoolean()) {
+                testCase.setFailure(ForkProtocol.readString(in), ForkProtocol.readString(in),
+                        ForkProtocol.readStrings(in));
+            }
+            result.cases.add(testCase);
+        }
+        return result;
+    }
+
+    /**
+     * Record the test file running over its budget as a failed test.
+     */
+    void addTimeout(String message, double time) {
+        Case timeout = new Case("budget", time / 1000.0);
+        timeout.setFailure("Timeout", message, Collections.<String> emptyList());
+        cases.add(timeout);
+        tried++;
+        failed++;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public List<Case> getCases() {
+        return cases;
+    }
+
+    public int getTried() {
+        return tried;
+    }
+
+    public int getPassed() {
+        return passed;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return the files the test file loaded, including itself.
+     */
+    public Set<File> getDependencies() {
+        return dependencies;
+    }
+
+    void setDependencies(Set<File> dependencies) {
+        this.dependencies = dependencies;
+    }
+
+    /**
+     * @return the time spent evaluating the test file itself, in ms.
+     */
+    public double getEvaluateTime() {
+        return evaluateTime;
+    }
+
+    /**
+     * @return the time spent in setUp(), in ms.
+     */
+    public double getSetUpTime() {
+        return setUpTime;
+    }
+
+    /**
+     * @return the time spent in tearDown(), in ms.
+     */
+    public double getTearDownTime() {
+        return tearDownTime;
+    }
+
+    /**
+     * @return the time spent running the whole test file, in ms.
+     */
+    public double getRunTime() {
+        return runTime;
+    }
+
+    void setTimes(double evaluateTime, double runTime) {
+        this.evaluateTime = evaluateTime;
+        this.runTime = runTime;
+    }
+}
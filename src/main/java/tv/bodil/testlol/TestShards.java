@@ -0,0 +1,178 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Splits a test suite into shards which take about as long as each other to
+ * run, so CI nodes can each run one shard.
+ *
+ * Test files are weighed by how long they took according to earlier reports,
+ * or by their size when there's no report for them. Sizes are scaled to
+ * seconds by the files which have both. The heaviest file goes to the
+ * lightest shard until all files are placed. Every shard must be given the
+ * same files and the same reports, or files will be run twice or not at all.
+ */
+public class TestShards {
+
+    private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
+    private static class Weighed {
+        final int index;
+        final String path;
+        final double weight;
+
+        Weighed(int index, String path, double weight) {
+            this.index = index;
+            this.path = path;
+            this.weight = weight;
+        }
+    }
+
+    private final List<List<Integer>> shards = new ArrayList<List<Integer>>();
+    private final double[] totals;
+
+    /**
+     * @param paths
+     *            the test paths, as named in reports.
+     * @param sizes
+     *            the size of each test file.
+     * @param durations
+     *            known durations in seconds, by test path.
+     */
+    public TestShards(List<String> paths, List<Long> sizes,
+            Map<String, Double> durations, int shardCount) {
+        double knownTime = 0.0, knownSize = 0.0;
+        for (int i = 0; i < paths.size(); i++) {
+            Double duration = durations.get(paths.get(i));
+            if (duration != null) {
+                knownTime += duration;
+                knownSize += sizes.get(i);
+            }
+        }
+        double secondsPerByte = (knownTime > 0.0 && knownSize > 0.0) ? knownTime
+                / knownSize : 1.0;
+
+        List<Weighed> files = new ArrayList<Weighed>();
+        for (int i = 0; i < paths.size(); i++) {
+            Double duration = durations.get(paths.get(i));
+            files.add(new Weighed(i, paths.get(i), (duration != null) ? duration
+                    : sizes.get(i) * secondsPerByte));
+        }
+        Collections.sort(files, new Comparator<Weighed>() {
+            public int compare(Weighed a, Weighed b) {
+                int order = Double.compare(b.weight, a.weight);
+                return (order != 0) ? order : a.path.compareTo(b.path);
+            }
+        });
+
+        totals = new double[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new ArrayList<Integer>());
+        }
+        for (Weighed file : files) {
+            int lightest = 0;
+            for (int i = 1; i < shardCount; i++) {
+                if (totals[i] < totals[lightest]) {
+                    lightest = i;
+                }
+            }
+            shards.get(lightest).add(file.index);
+            totals[lightest] += file.weight;
+        }
+        for (List<Integer> shard : shards) {
+            Collections.sort(shard);
+        }
+    }
+
+    /**
+     * @return the indexes into the original list of the files in the given
+     *         shard, in their original order.
+     */
+    public List<Integer> getShard(int shardIndex) {
+        return shards.get(shardIndex);
+    }
+
+    /**
+     * @return the estimated time to run the given shard, in seconds if there
+     *         were any durations to go by.
+     */
+    public double getEstimate(int shardIndex) {
+        return totals[shardIndex];
+    }
+
+    /**
+     * Read the durations of test files from the TEST-*.xml reports in a
+     * directory. Reports which can't be read are ignored.
+     *
+     * @return durations in seconds, by test path.
+     */
+    public static Map<String, Double> readDurations(File reportPath) {
+        Map<String, Double> durations = new HashMap<String, Double>();
+        File[] reports = reportPath.listFiles();
+        if (reports == null) {
+            return durations;
+        }
+        for (File report : reports) {
+            String name = report.getName();
+            if (name.startsWith("TEST-") && name.endsWith(".xml")) {
+                try {
+                    readDuration(report, durations);
+                } catch (IOException e) {
+                    // Balance this file by size instead
+                } catch (XMLStreamException e) {
+                    // Likewise
+                } catch (NumberFormatException e) {
+                    // Likewise
+                }
+            }
+        }
+        return durations;
+    }
+
+    private static void readDuration(File report, Map<String, Double> durations)
+            throws IOException, XMLStreamException {
+        InputStream in = new BufferedInputStream(new FileInputStream(report));
+        try {
+            XMLStreamReader xml = inputFactory.createXMLStreamReader(in);
+            try {
+                while (xml.hasNext()) {
+                    if (xml.next() == XMLStreamReader.START_ELEMENT) {
+                        if ("testsuite".equals(xml.getLocalName())) {
+                            String name = xml.getAttributeValue(null, "name");
+                            String time = xml.getAttributeValue(null, "time");
+                            if (name != null && time != null) {
+                                durations.put(name, Double.parseDouble(time));
+                            }
+                        }
+                        // Only the root element is of interest
+                        return;
+                    }
+                }
+            } finally {
+                xml.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
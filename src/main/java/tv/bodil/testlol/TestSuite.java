@@ -7,104 +7,165 @@
 package tv.bodil.testlol;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
-
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Result;
-import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import java.util.Map;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
-import org.mozilla.javascript.Context;
-import org.mozilla.javascript.NativeJavaObject;
-import org.mozilla.javascript.Script;
-import org.mozilla.javascript.Scriptable;
-import org.mozilla.javascript.ScriptableObject;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 
 public class TestSuite {
 
     private List<File> tests = new LinkedList<File>();
     private final File testSuitePath;
     private final File reportPath;
+    private final ReportWriter reportWriter;
+    private IncrementalState incrementalState;
+    private TestHistory history;
+    private boolean longestFirst, failedFirst;
+    private RunMetrics metrics = new RunMetrics();
 
     public TestSuite(File path, File reportPath) throws MojoExecutionException {
         this.testSuitePath = path;
         this.reportPath = reportPath;
+        this.reportWriter = new ReportWriter(reportPath);
         reportPath.mkdirs();
         for (File file : reportPath.listFiles()) {
             file.delete();
         }
-        tests = ScriptLoader.findTests(path);
+        tests = new ArrayList<File>(ScriptLoader.findTests(path));
         Collections.sort(tests);
     }
 
-    public int runTests(Shell shell, Context cx, Script testRunner, Log log)
-            throws MojoExecutionException, IOException {
-        int total = 0, totalFailed = 0;
-        String pathPrefix = testSuitePath.getCanonicalPath();
+    /**
+     * Record timings in the given metrics, or nowhere if null.
+     */
+    public void setMetrics(RunMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Skip test files which are up to date according to the given state, and
+     * record the results of the files which do run in it.
+     */
+    public void setIncrementalState(IncrementalState incrementalState) {
+        this.incrementalState = incrementalState;
+    }
+
+    /**
+     * Record how each test file went in the given history, and use it to
+     * decide the order to run them in.
+     */
+    public void setHistory(TestHistory history, boolean longestFirst,
+            boolean failedFirst) {
+        this.history = history;
+        this.longestFirst = longestFirst;
+        this.failedFirst = failedFirst;
+    }
+
+    /**
+     * Keep only the test files in the given shard of the suite.
+     *
+     * @param durations
+     *            known durations of test files, in seconds by test path.
+     */
+    public void shard(int shardIndex, int shardCount,
+            Map<String, Double> durations, Log log) throws IOException {
+        List<String> paths = new ArrayList<String>(tests.size());
+        List<Long> sizes = new ArrayList<Long>(tests.size());
         for (File file : tests) {
-            String path = file.getCanonicalPath();
-            if (path.startsWith(pathPrefix)) {
-                path = path.substring(pathPrefix.length() + 1).replace(
-                        File.separatorChar, '.');
-            }
+            paths.add(getTestPath(testSuitePath, file));
+            sizes.add(file.length());
+        }
+        TestShards shards = new TestShards(paths, sizes, durations, shardCount);
+        List<File> shard = new ArrayList<File>();
+        for (int i : shards.getShard(shardIndex)) {
+            shard.add(tests.get(i));
+        }
+        log.info(String.format(Locale.ENGLISH,
+                "Running shard %d of %d: %d of %d test files%s", shardIndex + 1,
+                shardCount, shard.size(), tests.size(), durations.isEmpty() ? ""
+                        : String.format(Locale.ENGLISH, ", estimated %.1f s",
+                                shards.getEstimate(shardIndex))));
+        tests = shard;
+    }
 
-            // Copy the global scope to attempt to isolate the test's
-            // environment
-            Scriptable testScope = cx.newObject(shell);
-            testScope.setPrototype(shell);
-            testScope.setParentScope(null);
+    public int runTests(TestWorker.Factory workers, int threadCount, Log log)
+            throws MojoExecutionException, IOException {
+        List<String> paths = new ArrayList<String>(tests.size());
+        for (File file : tests) {
+            paths.add(getTestPath(testSuitePath, file));
+        }
 
+        int total = 0, totalFailed = 0;
+        if (incrementalState != null) {
+            List<File> outdated = new ArrayList<File>();
+            List<String> outdatedPaths = new ArrayList<String>();
+            for (int i = 0; i < tests.size(); i++) {
+                if (incrementalState.isUpToDate(paths.get(i))) {
+                    total += incrementalState.reuse(paths.get(i), reportPath);
+                } else {
+                    outdated.add(tests.get(i));
+                    outdatedPaths.add(paths.get(i));
+                }
+            }
+            int skipped = tests.size() - outdated.size();
+            if (skipped > 0) {
+                log.info("Skipping " + skipped + " unchanged test file"
+                        + (skipped == 1 ? "" : "s"));
+            }
+            tests = outdated;
+            paths = outdatedPaths;
+        }
+        if (history != null && (longestFirst || failedFirst)) {
+            List<File> ordered = new ArrayList<File>(tests.size());
+            List<String> orderedPaths = new ArrayList<String>(tests.size());
+            for (int i : history.order(paths, longestFirst, failedFirst)) {
+                ordered.add(tests.get(i));
+                orderedPaths.add(paths.get(i));
+            }
+            tests = ordered;
+            paths = orderedPaths;
+        }
+        if (tests.isEmpty()) {
+            // Nothing left to run, don't bother setting up a worker
+        } else if (threadCount <= 1 || tests.size() <= 1) {
+            TestWorker worker = workers.createWorker();
             try {
-                log.info("Running test " + path);
-                ScriptLoader.evaluateScript(cx, testScope, file, path);
-                testRunner.exec(cx, testScope);
-                Integer tried = (Integer) Context.jsToJava(testScope.get(
-                        "tried", testScope), Integer.class);
-                Integer passed = (Integer) Context.jsToJava(testScope.get(
-                        "passed", testScope), Integer.class);
-                Integer failed = (Integer) Context.jsToJava(testScope.get(
-                        "failed", testScope), Integer.class);
-                Scriptable details = (Scriptable) testScope.get("details",
-                        testScope);
-                log.info(String.format("  %d test%s: %d passed, %d failed",
-                        tried, (tried == 1) ? "" : "s", passed, failed));
-                reportTestCase(path, details, tried, failed);
-                if (failed > 0) {
-                    log.info("");
-                    for (Object id : details.getIds()) {
-                        ScriptableObject detail = (ScriptableObject) details
-                                .get(Context.toString(id), details);
-                        if (detail.has("failure", detail)) {
-                            printError(log, detail, path, Context
-                                    .toString(id));
-                        }
-                    }
-                    log.info("");
-                    totalFailed += failed;
+                for (int i = 0; i < tests.size(); i++) {
+                    log.info("Running test " + paths.get(i));
+                    TestResult result = worker.run(tests.get(i), paths.get(i));
+                    totalFailed += reportResult(result, log);
+                    recordResult(result);
+                    total += result.getPassed();
                 }
-                total += passed;
-            } catch (FileNotFoundException e) {
-                throw new MojoExecutionException(e.getMessage());
-            } catch (IOException e) {
-                throw new MojoExecutionException(e.getMessage());
+            } finally {
+                worker.close();
             }
+        } else {
+            for (TestResult result : runParallel(workers, threadCount, paths)) {
+                log.info("Results of test " + result.getPath());
+                totalFailed += reportResult(result, log);
+                recordResult(result);
+                total += result.getPassed();
+            }
+        }
+        if (incrementalState != null) {
+            incrementalState.save();
+        }
+        if (history != null) {
+            history.save();
         }
         log.info("");
         log.info("Total tests passed: "
@@ -115,111 +176,124 @@ public class TestSuite {
         return totalFailed;
     }
 
-    private void reportTestCase(String path, Scriptable details, int total,
-            int failed) throws MojoExecutionException {
-        Document doc;
-        try {
-            doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
-                    .newDocument();
-        } catch (ParserConfigurationException e) {
-            throw new MojoExecutionException(e.getMessage());
-        }
-        Element root = doc.createElement("testsuite");
-        doc.appendChild(root);
-        root.setAttribute("tests", "" + total);
-        root.setAttribute("failures", "" + failed);
-        root.setAttribute("name", path);
-        root.setAttribute("timestamp", new SimpleDateFormat(
-                "yyyy-MM-dd'T'HH:mm:ss").format(new Date()));
-        Double totalTime = 0.0;
-        for (Object id : details.getIds()) {
-            ScriptableObject detail = (ScriptableObject) details.get(Context
-                    .toString(id), details);
-            Element testCase = doc.createElement("testcase");
-            testCase.setAttribute("classname", path);
-            testCase.setAttribute("name", Context.toString(id));
-            Double testTime = ((Double) Context.jsToJava(detail.get("time", detail), Double.class)) / 1000.0;
-            testCase.setAttribute("time", String.format("%.3f", testTime));
-            totalTime += testTime;
-            if (detail.has("failure", detail)) {
-                Scriptable error = (Scriptable) detail.get(
-                        "exception", detail);
-                Element failure = doc.createElement("failure");
-                String msg = "";
-                if (error.has("isJsUnitException", error)) {
-                    failure.setAttribute("type", "JsUnitException");
-                    msg = error.get("jsUnitMessage", error).toString();
-                } else if (error.has("rhinoException", error)) {
-                    failure.setAttribute("type", error.get("name", error)
-                            .toString());
-                    msg = error.get("name", error) + ": "
-                            + error.get("message", error);
-                } else {
-                    msg = error.toString();
-                }
-                failure.setAttribute("message", msg);
-                StringBuilder body = new StringBuilder();
-                body.append(msg + "\n");
-                if (error.has("stackTrace", error)) {
-                    NativeJavaObject stackWrap = (NativeJavaObject) error.get("stackTrace", error);
-                    String[] stack = ((String) stackWrap.unwrap()).split("\n");
-                    for (String trace : stack) {
-                        if (!trace.contains("classpath:/")) {
-                            body.append(trace + "\n");
+    /**
+     * @return the test file's path relative to the test suite, with dots for
+     *         separators, which names it in reports.
+     */
+    static String getTestPath(File testSuitePath, File file) throws IOException {
+        String pathPrefix = testSuitePath.getCanonicalPath();
+        String path = file.getCanonicalPath();
+        if (path.startsWith(pathPrefix)) {
+            path = path.substring(pathPrefix.length() + 1).replace(
+                    File.separatorChar, '.');
+        }
+        return path;
+    }
+
+    /**
+     * Run the test files on a pool of workers, each pulling the next file off
+     * a shared queue, and hand the results back in test file order.
+     */
+    private List<TestResult> runParallel(final TestWorker.Factory workers,
+            int threadCount, final List<String> paths)
+            throws MojoExecutionException, IOException {
+        final TestResult[] results = new TestResult[tests.size()];
+        final AtomicInteger next = new AtomicInteger();
+        threadCount = Math.min(threadCount, tests.size());
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+        List<Future<Object>> running = new ArrayList<Future<Object>>();
+        for (int i = 0; i < threadCount; i++) {
+            running.add(pool.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    try {
+                        TestWorker worker = workers.createWorker();
+                        try {
+                            int i;
+                            while ((i = next.getAndIncrement()) < results.length) {
+                                results[i] = worker.run(tests.get(i), paths.get(i));
+                            }
+                        } finally {
+                            worker.close();
                         }
+                    } catch (Exception e) {
+                        // Stop the other workers from picking up more files
+                        // now, rather than once this one is waited for
+                        next.set(results.length);
+                        throw e;
                     }
+                    return null;
                 }
-                failure.setTextContent(body.toString());
-                testCase.appendChild(failure);
-            }
-            root.appendChild(testCase);
+            }));
         }
-        root.setAttribute("time", String.format("%.3f", totalTime));
-
-        File report = new File(reportPath, "TEST-" + path + ".xml");
-        Source source = new DOMSource(doc);
-        Transformer xformer;
+        pool.shutdown();
         try {
-            report.createNewFile();
-            Result result = new StreamResult(new FileOutputStream(report));
-            xformer = TransformerFactory.newInstance().newTransformer();
-            xformer.transform(source, result);
-        } catch (TransformerConfigurationException e) {
-            throw new MojoExecutionException(e.getMessage());
-        } catch (TransformerException e) {
-            throw new MojoExecutionException(e.getMessage());
-        } catch (FileNotFoundException e) {
-            throw new MojoExecutionException(e.getMessage());
-        } catch (IOException e) {
-            throw new MojoExecutionException(e.getMessage());
+            for (Future<Object> worker : running) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            throw new MojoExecutionException("Interrupted while running tests");
+        } catch (ExecutionException e) {
+            pool.shutdownNow();
+            Throwable cause = e.getCause();
+            if (cause instanceof MojoExecutionException) {
+                throw (MojoExecutionException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new MojoExecutionException(cause.getMessage());
         }
+        return Arrays.asList(results);
     }
 
-    private void printError(Log log, ScriptableObject detail, String file,
-            String test) {
-        try {
-            Scriptable error = (Scriptable) detail.get("exception", detail);
-            if (error.has("isJsUnitException", error)) {
-                log.error(test + "() FAILED: " + error.get("jsUnitMessage", error));
-            } else if (error.has("rhinoException", error)) {
-                // Exception e = (Exception)
-                // Context.jsToJava(error.get("rhinoException", error),
-                // Exception.class);
-                log.error(test + "() FAILED: " + error.get("name", error) + ": "
-                        + error.get("message", error));
-            }
+    private void recordResult(TestResult result) throws IOException {
+        if (incrementalState != null) {
+            incrementalState.record(result, reportPath);
+        }
+        if (history != null) {
+            history.record(result);
+        }
+    }
 
-            NativeJavaObject stackWrap = (NativeJavaObject) error.get("stackTrace",
-                    error);
-            String[] stack = ((String) stackWrap.unwrap()).split("\n");
-            for (String trace : stack) {
-                if (!trace.contains("classpath:/")) {
-                    log.error(trace);
+    int reportResult(TestResult result, Log log)
+            throws MojoExecutionException {
+        int tried = result.getTried();
+        log.info(String.format("  %d test%s: %d passed, %d failed", tried,
+                (tried == 1) ? "" : "s", result.getPassed(), result
+                        .getFailed()));
+        long start = RunMetrics.now();
+        reportWriter.write(result);
+        if (metrics != null) {
+            metrics.addFile(result, RunMetrics.now() - start);
+        }
+        if (result.getFailed() > 0) {
+            log.info("");
+            for (TestResult.Case testCase : result.getCases()) {
+                if (testCase.isFailed()) {
+                    printError(log, testCase);
                 }
             }
-        } catch (ClassCastException e) {
-            String error = (detail.get("exception", detail)).toString();
-            log.error(test + "() FAILED: Unhandled exception thrown in test code: " + error);
+            log.info("");
+        }
+        return result.getFailed();
+    }
+
+    private void printError(Log log, TestResult.Case testCase) {
+        String test = testCase.getName();
+        if (testCase.getStackTrace() == null) {
+            log.error(test + "() FAILED: Unhandled exception thrown in test code: "
+                    + testCase.getMessage());
+            return;
+        }
+        if (testCase.getFailureType() != null) {
+            log.error(test + "() FAILED: " + testCase.getMessage());
+        }
+        for (String trace : testCase.getStackTrace()) {
+            log.error(trace);
         }
     }
 }
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+/**
+ * Runs test files one at a time. A worker is created, used and closed on a
+ * single thread, so implementations are free to keep thread bound state such
+ * as an entered Rhino Context.
+ */
+public interface TestWorker {
+
+    public interface Factory {
+        TestWorker createWorker() throws MojoExecutionException, IOException;
+    }
+
+    TestResult run(File file, String path) throws MojoExecutionException,
+            IOException;
+
+    void close();
+}
@@ -6,15 +6,29 @@
 
 package tv.bodil.testlol;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 
 import org.apache.maven.artifact.DependencyResolutionRequiredException;
 import org.apache.maven.plugin.AbstractMojo;
@@ -23,7 +37,7 @@ import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.project.MavenProject;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.ContextFactory;
-import org.mozilla.javascript.EcmaError;
+import org.mozilla.javascript.RhinoException;
 import org.mozilla.javascript.Script;
 import org.mozilla.javascript.Scriptable;
 
@@ -35,6 +49,9 @@ import org.mozilla.javascript.Scriptable;
  * @requiresDependencyResolution test
  */
 public class Testlol extends AbstractMojo {
+
+    // Time for a forked JVM to start and load Env.js, on top of fileTimeout
+    private static final long FORK_START_TIME = 30000;
     
     /** @parameter default-value="${project}" */
     private MavenProject project;
@@ -69,6 +86,13 @@ public class Testlol extends AbstractMojo {
      */
     private File reportPath;
 
+    /**
+     * Directory for Testlol's caches and state between builds.
+     *
+     * @parameter expression="${project.build.directory}/testlol"
+     */
+    private File workDirectory;
+
     /**
      * Run JSLint.
      *
@@ -110,21 +134,240 @@ public class Testlol extends AbstractMojo {
      * @parameter default-value="false" expression="${maven.test.skip}"
      */
     private boolean skip;
+
+    /**
+     * Number of threads to run test files on. Each thread gets its own Rhino
+     * context and its own copy of the global scope. JSLint also runs on this
+     * many threads.
+     *
+     * @parameter default-value="1" expression="${testlol.threadCount}"
+     */
+    private int threadCount;
+
+    /**
+     * Build the global scope only once and seal it, instead of building one
+     * per thread. Test files then only see it as the prototype of their own
+     * scope, so global variables they assign go to their own scope, but
+     * objects reachable from the global scope (such as the DOM) are still
+     * shared between all test files and threads.
+     *
+     * @parameter default-value="false" expression="${testlol.sharedScope}"
+     */
+    private boolean sharedScope;
+
+    /**
+     * How Rhino runs scripts: "interpreted" runs everything in the
+     * interpreter, "compiled" compiles everything to JVM bytecode, and
+     * "hybrid" compiles the bundled runtime and the global files but
+     * interprets test files and the files they load. The bundled runtime
+     * ships precompiled at optimization level 9, and runs from those classes
+     * when it's compiled at that level.
+     *
+     * @parameter default-value="interpreted" expression="${testlol.executionMode}"
+     */
+    private String executionMode;
+
+    /**
+     * Rhino optimization level (0-9) used for scripts which are compiled to
+     * bytecode.
+     *
+     * @parameter default-value="9" expression="${testlol.optimizationLevel}"
+     */
+    private int optimizationLevel;
+
+    /**
+     * Only run test files which failed last time, or whose inputs have
+     * changed since they last passed. Inputs are the test file and all the
+     * files it loads. Changing the plugin, the global files or the execution
+     * mode makes every file run again.
+     *
+     * @parameter default-value="false" expression="${testlol.incremental}"
+     */
+    private boolean incremental;
+
+    /**
+     * Where to write timings for every phase of the run, every test file and
+     * every test, as JSON.
+     *
+     * @parameter default-value="${project.build.directory}/testlol/metrics.json" expression="${testlol.metricsFile}"
+     */
+    private File metricsFile;
+
+    /**
+     * How many of the slowest test files and tests to list after the run. Set
+     * to 0 to list none.
+     *
+     * @parameter default-value="10" expression="${testlol.slowestCount}"
+     */
+    private int slowestCount;
+
+    /**
+     * Fail a test function which runs longer than this many ms. 0 means no
+     * limit.
+     *
+     * @parameter default-value="0" expression="${testlol.testTimeout}"
+     */
+    private long testTimeout;
+
+    /**
+     * Fail a test function which runs more than this many JavaScript
+     * instructions. 0 means no limit.
+     *
+     * @parameter default-value="0" expression="${testlol.testInstructionLimit}"
+     */
+    private long testInstructionLimit;
+
+    /**
+     * Abandon a test file, including setUp() and tearDown(), which runs longer
+     * than this many ms. 0 means no limit.
+     *
+     * @parameter default-value="0" expression="${testlol.fileTimeout}"
+     */
+    private long fileTimeout;
+
+    /**
+     * Abandon a test file which runs more than this many JavaScript
+     * instructions. 0 means no limit.
+     *
+     * @parameter default-value="0" expression="${testlol.fileInstructionLimit}"
+     */
+    private long fileInstructionLimit;
+
+    /**
+     * Run only this shard (0 to shardCount - 1) of the test suite, for
+     * splitting the suite across several machines.
+     *
+     * @parameter default-value="0" expression="${testlol.shardIndex}"
+     */
+    private int shardIndex;
+
+    /**
+     * Number of shards to split the test suite into.
+     *
+     * @parameter default-value="1" expression="${testlol.shardCount}"
+     */
+    private int shardCount;
+
+    /**
+     * A directory of TEST-*.xml reports from an earlier run of the whole
+     * suite, used to balance the shards by how long each test file takes.
+     * Without it, shards are balanced by file size. Every shard must be given
+     * the same reports.
+     *
+     * @parameter expression="${testlol.shardTimingsPath}"
+     */
+    private File shardTimingsPath;
+
+    /**
+     * Run the test files which took longest last time first, so a slow file
+     * doesn't hold up the end of a parallel run. Files are otherwise run in
+     * path order.
+     *
+     * @parameter default-value="false" expression="${testlol.longestFirst}"
+     */
+    private boolean longestFirst;
+
+    /**
+     * Run the test files which failed last time first, to report them sooner.
+     *
+     * @parameter default-value="false" expression="${testlol.failedFirst}"
+     */
+    private boolean failedFirst;
+
+    /**
+     * Measure statement coverage of the JavaScript files under basePath, and
+     * write it to coverageReportPath as lcov.info and cobertura.xml.
+     *
+     * @parameter default-value="false" expression="${testlol.coverage}"
+     */
+    private boolean coverage;
+
+    /**
+     * Where to write coverage reports.
+     *
+     * @parameter expression="${project.build.directory}/testlol/coverage"
+     */
+    private File coverageReportPath;
+
+    /**
+     * Keep a serialized copy of the initialised global scope, and restore it
+     * instead of loading Env.js and the global files on later runs.
+     *
+     * @parameter default-value="false" expression="${testlol.snapshot}"
+     */
+    private boolean snapshot;
+
+    /**
+     * Keep the global scope with Env.js and JsUnit loaded, before any global
+     * files, for as long as Maven keeps the plugin loaded, and build later
+     * global scopes on top of it instead of loading Env.js again. In a
+     * reactor build, the modules after the first only load their own global
+     * files. As with sharedScope, objects made by Env.js, such as the DOM,
+     * are then shared, here between all the modules.
+     *
+     * @parameter default-value="false" expression="${testlol.reuseEnvironment}"
+     */
+    private boolean reuseEnvironment;
+
+    /**
+     * A directory of canned XMLHttpRequest responses, one directory per
+     * method, eg. GET/api/items.json answers GET /api/items.json.
+     *
+     * @parameter expression="${testlol.xhrFixtures}"
+     */
+    private File xhrFixtures;
+
+    /**
+     * Run test files in this many forked JVMs instead of Maven's, each with a
+     * Shell of its own. 0 runs them in Maven's JVM, on threadCount threads.
+     *
+     * @parameter default-value="0" expression="${testlol.forkCount}"
+     */
+    private int forkCount;
+
+    /**
+     * Keep each forked JVM for the next test file, rather than forking a new
+     * one for every file.
+     *
+     * @parameter default-value="true" expression="${testlol.reuseForks}"
+     */
+    private boolean reuseForks;
+
+    /**
+     * How long to wait for a forked JVM to finish a test file, in ms, before
+     * killing it and failing the file. 0 means fileTimeout plus 30 seconds
+     * for starting the JVM, or no limit if there's no fileTimeout either.
+     *
+     * @parameter default-value="0" expression="${testlol.forkTimeout}"
+     */
+    private long forkTimeout;
+
+    /**
+     * Extra JVM options for the forked JVMs, such as -Xmx1g. Options are
+     * separated by whitespace; quote an option to keep spaces in it, as in
+     * -Dfoo="a b".
+     *
+     * @parameter expression="${testlol.argLine}"
+     */
+    private String argLine;
+
+    private RunMetrics metrics = new RunMetrics();
+    private ShellSnapshot shellSnapshot;
     
-    private long timer;
-    
-    private void startTimer() {
-        timer = Calendar.getInstance().getTimeInMillis();
+    private long startTimer() {
+        return RunMetrics.now();
     }
 
-    private void markTimer(String what) {
-        long time = Calendar.getInstance().getTimeInMillis() - timer;
-        getLog().debug("Time spent " + what + ": " + time + " ms");
+    private void markTimer(String what, long timer) {
+        long time = RunMetrics.now() - timer;
+        metrics.addPhase(what, time);
+        getLog().debug(String.format(Locale.ENGLISH, "Time spent %s: %.3f ms",
+                what, RunMetrics.toMillis(time)));
     }
 
     private Script loadJSResource(Context cx, String path) throws IOException {
     	getLog().debug("Loading JavaScript resource: " + path);
-    	return ScriptLoader.compileScript(cx, path);
+    	return ScriptLoader.compileScript(cx, path, getLibraryOptimizationLevel());
     }
     
     private void execJSResource(Context cx, Scriptable scope, String path)
@@ -133,80 +376,113 @@ public class Testlol extends AbstractMojo {
     }
 
     public void execute() throws MojoExecutionException, MojoFailureException {
-    	if (skipTests || skip) {
+    	if (isSkipped()) {
     		getLog().info("Tests are skipped.");
     		return;
     	}
     	
-        final ContextFactory contextFactory = new ContextFactory();
+        configure();
 
-        try {
-            ClassLoader cl = getClassLoader();
-            contextFactory.initApplicationClassLoader(cl);
-        } catch (MalformedURLException e) {
-            throw new RuntimeException(e);
-        } catch (DependencyResolutionRequiredException e) {
-            throw new RuntimeException(e);
-        }
-
-        Context cx = contextFactory.enterContext();
+        metrics = new RunMetrics();
+        long timer = startTimer();
+        final ContextFactory contextFactory = createContextFactory();
+        markTimer("setting up context factory", timer);
 
         try {
             // Run JSLint
 
             if (jsLint) {
+                timer = startTimer();
                 if (jsLintBasePath == null) {
                     jsLintBasePath = basePath;
                 }
                 getLog().info("Running JSLint in " + jsLintBasePath);
                 JSLintRunner jsLintRunner = new JSLintRunner(jsLintBasePath, jsLintOptions);
-                int failed = jsLintRunner.lint(getLog());
+                jsLintRunner.setCacheFile(new File(workDirectory, "jslint-cache.properties"));
+                int failed = jsLintRunner.lint(getLog(), threadCount);
+                markTimer("running JSLint", timer);
                 if (jsLintStrict && failed > 0) {
                     throw new MojoFailureException("JSLint found " + failed + " issue" + (failed == 1 ? "." : "s."));
                 }
             }
 
-            cx.setOptimizationLevel(-1);
-
-            // Load global files
-
+            // Read the timings before the old reports are cleared, in case
+            // they're the same
+            Map<String, Double> durations = Collections.emptyMap();
+            if (shardCount > 1 && shardTimingsPath != null) {
+                durations = TestShards.readDurations(shardTimingsPath);
+            }
             TestSuite tests = new TestSuite(testSuite, reportPath);
+            if (shardCount > 1) {
+                tests.shard(shardIndex, shardCount, durations, getLog());
+            }
+            tests.setHistory(new TestHistory(new File(workDirectory, "history.properties")),
+                    longestFirst, failedFirst);
+            tests.setMetrics(metrics);
+            if (incremental && coverage) {
+                getLog().warn("Running every test file, incremental runs can't measure coverage");
+            } else if (incremental) {
+                tests.setIncrementalState(new IncrementalState(new File(
+                        workDirectory, "incremental"), getFingerprint()));
+            }
+            Coverage testCoverage = null;
+            if (snapshot && reuseEnvironment) {
+                getLog().info("Reusing Env.js from earlier executions instead of the Shell snapshot");
+            } else if (snapshot && coverage) {
+                getLog().warn("Loading Env.js from scratch, snapshots can't measure coverage");
+            }
+            if (coverage) {
+                testCoverage = new Coverage(basePath, new File(workDirectory, "coverage-cache"));
+                Coverage.setActive(testCoverage);
+            }
 
             getLog().info("Running test suite in " + getTestSuite().toString());
+            if (threadCount > 1) {
+                getLog().info("Using " + threadCount + " threads");
+            }
+            getLog().debug("Execution mode " + executionMode + ": optimization level "
+                    + getLibraryOptimizationLevel() + " for libraries, "
+                    + getTestOptimizationLevel() + " for tests");
 
-            startTimer();
-            Shell shell = new Shell(this, cx);
-            markTimer("initStandardObjects()");
-            getLog().info("Loading Env.js");
-            execJSResource(cx, shell, "/tv/bodil/testlol/js/env.rhino.js");
-            execJSResource(cx, shell, "/tv/bodil/testlol/js/testinit.js");
-            execJSResource(cx, shell, "/tv/bodil/testlol/js/jsUnitCore.js");
-            markTimer("loading environment");
-            if (globalFiles != null) {
-                startTimer();
-                for (String path : globalFiles) {
-                    if (path.startsWith("classpath:")) {
-                        path = path.substring(10);
-                        getLog().info("Loading classpath:" + path);
-                        execJSResource(cx, shell, path);
-                    } else {
-                        File file = new File(path);
-                        if (!file.isAbsolute()) {
-                            file = new File(project.getBasedir(), path);
-                        }
-                        getLog().info("Loading " + file.getPath());
-                        cx.evaluateReader(shell, new FileReader(file), file
-                                .getPath(), 1, null);
+            TestWorker.Factory workers;
+            int workerCount = threadCount;
+            if (forkCount > 0 && coverage) {
+                getLog().warn("Running tests in this JVM, forked JVMs can't measure coverage");
+            }
+            if (forkCount > 0 && !coverage) {
+                getLog().info("Forking " + forkCount + " JVM" + (forkCount == 1 ? "" : "s")
+                        + (reuseForks ? "" : ", one per test file"));
+                final List<String> command = getForkCommand();
+                final byte[] configuration = getForkConfiguration();
+                final long timeout = (forkTimeout > 0 || fileTimeout <= 0) ? forkTimeout
+                        : fileTimeout + FORK_START_TIME;
+                workers = new TestWorker.Factory() {
+                    public TestWorker createWorker() {
+                        return new ForkedWorker(command, configuration, reuseForks, timeout,
+                                getLog());
                     }
-                }
-                markTimer("loading global scripts");
+                };
+                workerCount = forkCount;
+            } else {
+                final Shell baseShell = sharedScope ? createSharedShell(contextFactory) : null;
+                workers = new TestWorker.Factory() {
+                    public TestWorker createWorker() throws IOException {
+                        return new ContextWorker(contextFactory, Testlol.this, baseShell);
+                    }
+                };
             }
 
-            Script testRunner = loadJSResource(cx, "/tv/bodil/testlol/js/testrunner.js");
-
-            startTimer();
-            int failed = tests.runTests(shell, cx, testRunner, getLog());
-            markTimer("running test suite");
+            timer = startTimer();
+            int failed = tests.runTests(workers, workerCount, getLog());
+            markTimer("running test suite (" + executionMode + ")", timer);
+            getLog().debug(ScriptLoader.getScriptCache().toString());
+            getLog().debug(Shell.getLoadCache().toString());
+            metrics.logSlowest(getLog(), slowestCount);
+            metrics.write(metricsFile, slowestCount);
+            if (testCoverage != null) {
+                writeCoverage(testCoverage);
+            }
+            reportUnmatchedRequests();
             if (failed > 0) {
                 throw new MojoFailureException(failed + " test"
                         + (failed == 1 ? "" : "s") + " failed");
@@ -215,13 +491,550 @@ public class Testlol extends AbstractMojo {
             throw new MojoExecutionException(e.getMessage());
         } catch (IOException e) {
             throw new MojoExecutionException(e.getMessage());
-        } catch (EcmaError e) {
+        } catch (RhinoException e) {
+            // Whether the script failed here or in a forked JVM
             throw new MojoFailureException(e.getMessage());
+        } finally {
+            Coverage.setActive(null);
+            XhrFixtures.setActive(null);
+        }
+    }
+
+    private void writeCoverage(Coverage testCoverage) throws IOException {
+        testCoverage.addUnloadedFiles(null);
+        testCoverage.writeLcov(new File(coverageReportPath, "lcov.info"));
+        testCoverage.writeCobertura(new File(coverageReportPath, "cobertura.xml"));
+        int[] totals = testCoverage.getTotals();
+        getLog().info(String.format(Locale.ENGLISH, "Coverage: %d of %d lines (%.1f%%)",
+                totals[1], totals[0], (totals[0] > 0) ? 100.0 * totals[1] / totals[0] : 100.0));
+        getLog().info("");
+    }
+
+    /**
+     * List the XMLHttpRequests which no fixture answered in
+     * xhr-unmatched.txt, if there were any fixtures to answer them.
+     */
+    private void reportUnmatchedRequests() throws IOException {
+        XhrFixtures fixtures = XhrFixtures.getActive();
+        if (fixtures == null || !fixtures.isUsed()) {
+            return;
+        }
+        List<String> unmatched = fixtures.getUnmatched();
+        File file = new File(workDirectory, "xhr-unmatched.txt");
+        file.getParentFile().mkdirs();
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            for (String request : unmatched) {
+                out.write(request + "\n");
+            }
+        } finally {
+            out.close();
+        }
+        if (!unmatched.isEmpty()) {
+            getLog().warn(unmatched.size() + " XMLHttpRequest" + (unmatched.size() == 1 ? "" : "s")
+                    + " had no fixture, see " + file);
+            for (String request : unmatched) {
+                getLog().debug("No XHR fixture for " + request);
+            }
+        }
+    }
+
+    /**
+     * Check the configuration shared by all goals, and set up the caches it
+     * points at.
+     */
+    void configure() throws MojoExecutionException {
+        if (!"interpreted".equals(executionMode) && !"compiled".equals(executionMode)
+                && !"hybrid".equals(executionMode)) {
+            throw new MojoExecutionException("Invalid execution mode \"" + executionMode
+                    + "\", expected interpreted, compiled or hybrid");
+        }
+        if (optimizationLevel < 0 || optimizationLevel > 9) {
+            throw new MojoExecutionException("Invalid optimization level " + optimizationLevel
+                    + ", expected 0-9");
+        }
+
+        if (shardCount < 1) {
+            throw new MojoExecutionException("Invalid shard count " + shardCount
+                    + ", expected at least 1");
+        }
+        if (shardIndex < 0 || shardIndex >= shardCount) {
+            throw new MojoExecutionException("Invalid shard " + shardIndex + " of "
+                    + shardCount + ", expected 0-" + (shardCount - 1));
+        }
+
+        CoffeeScriptCompiler.setCacheDirectory(new File(workDirectory, "coffee"));
+        ScriptLoader.setResourceDirectory(new File(workDirectory, "resources"));
+        if (snapshot) {
+            shellSnapshot = new ShellSnapshot(new File(workDirectory, "shell.snapshot"));
+        }
+
+        XhrFixtures fixtures = new XhrFixtures();
+        if (xhrFixtures != null) {
+            try {
+                getLog().info("Loaded " + fixtures.load(xhrFixtures) + " XHR fixtures from "
+                        + xhrFixtures);
+            } catch (IOException e) {
+                throw new MojoExecutionException(e.getMessage());
+            }
+        }
+        XhrFixtures.setActive(fixtures);
+    }
+
+    ContextFactory createContextFactory() {
+        ContextFactory contextFactory = new BudgetContextFactory(testTimeout,
+                testInstructionLimit, fileTimeout, fileInstructionLimit);
+
+        try {
+            // A forked JVM already has the test classpath
+            ClassLoader cl = (project != null) ? getClassLoader() : Testlol.class
+                    .getClassLoader();
+            contextFactory.initApplicationClassLoader(cl);
+        } catch (MalformedURLException e) {
+            throw new RuntimeException(e);
+        } catch (DependencyResolutionRequiredException e) {
+            throw new RuntimeException(e);
+        }
+        return contextFactory;
+    }
+
+    /**
+     * Build a global scope with Env.js, JsUnit and the global files loaded.
+     * The Context must already be entered on the calling thread.
+     */
+    Shell createShell(Context cx) throws IOException {
+        Shell.attach(cx, this);
+        if (reuseEnvironment) {
+            Shell base = getBaseShell(cx);
+            long timer = startTimer();
+            Shell shell = new Shell(this, cx, base);
+            markTimer("deriving Shell from the reused environment", timer);
+            loadGlobalFiles(cx, shell);
+            getLog().debug(ScriptLoader.getScriptCache().toString());
+            return shell;
+        }
+
+        String snapshotKey = null;
+        if (shellSnapshot != null && !Coverage.isActive()) {
+            long timer = startTimer();
+            snapshotKey = getSnapshotKey(cx);
+            Shell shell = shellSnapshot.restore(cx, snapshotKey, this, getLog());
+            if (shell != null) {
+                markTimer("restoring Shell snapshot", timer);
+                return shell;
+            }
+        }
+
+        long timer = startTimer();
+        Shell shell = new Shell(this, cx);
+        markTimer("initStandardObjects()", timer);
+        loadEnvironment(cx, shell);
+        loadGlobalFiles(cx, shell);
+        getLog().debug(ScriptLoader.getScriptCache().toString());
+        if (snapshotKey != null) {
+            timer = startTimer();
+            shellSnapshot.save(cx, snapshotKey, shell, getLog());
+            markTimer("writing Shell snapshot", timer);
+        }
+        return shell;
+    }
+
+    private void loadEnvironment(Context cx, Shell shell) throws IOException {
+        long timer = startTimer();
+        getLog().info("Loading Env.js");
+        int level = cx.getOptimizationLevel();
+        try {
+            execJSResource(cx, shell, "/tv/bodil/testlol/js/env.rhino.js");
+            execJSResource(cx, shell, "/tv/bodil/testlol/js/eventloop.js");
+            execJSResource(cx, shell, "/tv/bodil/testlol/js/xhrfixtures.js");
+            execJSResource(cx, shell, "/tv/bodil/testlol/js/testinit.js");
+            execJSResource(cx, shell, "/tv/bodil/testlol/js/jsUnitCore.js");
+        } finally {
+            // Env.js turns the optimizer off for the whole Context, which
+            // would leave the test files and load() interpreted
+            cx.setOptimizationLevel(level);
+        }
+        markTimer("loading Env.js and JsUnit", timer);
+    }
+
+    private void loadGlobalFiles(Context cx, Shell shell) throws IOException {
+        if (globalFiles != null) {
+            long timer = startTimer();
+            for (String path : globalFiles) {
+                if (path.startsWith("classpath:")) {
+                    path = path.substring(10);
+                    getLog().info("Loading classpath:" + path);
+                    execJSResource(cx, shell, path);
+                } else {
+                    File file = resolveGlobalFile(path);
+                    getLog().info("Loading " + file.getPath());
+                    ScriptLoader.compileFile(cx, file, getLibraryOptimizationLevel())
+                            .exec(cx, shell);
+                }
+            }
+            markTimer("loading global scripts", timer);
+        }
+    }
+
+    /**
+     * @return the sealed Shell with Env.js and JsUnit loaded which an earlier
+     *         execution in this JVM left behind, or a new one left behind for
+     *         the next.
+     */
+    private Shell getBaseShell(Context cx) throws IOException {
+        String key = getPluginVersion() + ":"
+                + ScriptLoader.getCompilationStamp(cx, getLibraryOptimizationLevel());
+        synchronized (BaseEnvironment.class) {
+            Shell base = BaseEnvironment.get(key);
+            if (base != null) {
+                getLog().debug("Reusing Env.js loaded by an earlier execution");
+                return base;
+            }
+            // Build it against the plugin's classes only, so it doesn't keep
+            // this module's class loader alive
+            ClassLoader moduleLoader = cx.getApplicationClassLoader();
+            cx.setApplicationClassLoader(Testlol.class.getClassLoader());
+            try {
+                long timer = startTimer();
+                base = new Shell(this, cx);
+                markTimer("initStandardObjects()", timer);
+                loadEnvironment(cx, base);
+            } finally {
+                cx.setApplicationClassLoader(moduleLoader);
+            }
+            // Nothing of this module's may stay behind; module Shells have
+            // their own, and what the base prints goes to the running mojo
+            base.attach(null);
+            base.delete("_testlol");
+            base.sealObject();
+            BaseEnvironment.put(key, base);
+            return base;
+        }
+    }
+
+    /**
+     * Build a global scope once and seal it, so it can safely be used as the
+     * read-only prototype of every test scope on every thread.
+     */
+    private Shell createSharedShell(ContextFactory contextFactory) throws IOException {
+        Context cx = contextFactory.enterContext();
+        try {
+            cx.setOptimizationLevel(getTestOptimizationLevel());
+            Shell shell = createShell(cx);
+            shell.sealObject();
+            return shell;
         } finally {
             Context.exit();
         }
     }
 
+    Script loadTestRunner(Context cx) throws IOException {
+        return loadJSResource(cx, "/tv/bodil/testlol/js/testrunner.js");
+    }
+
+    /**
+     * A hash of everything besides the test files themselves which can change
+     * the outcome of a test: the plugin, the execution mode, the global files,
+     * the test classpath, which scripts and classes may be loaded from, and
+     * the XHR fixtures.
+     */
+    private String getFingerprint() throws IOException {
+        ContentHash hash = new ContentHash();
+        hash.update(getPluginVersion());
+        hash.update(executionMode + ":" + optimizationLevel);
+        hash.update(basePath.getAbsolutePath());
+        if (globalFiles != null) {
+            for (String path : globalFiles) {
+                hash.update(path);
+                if (!path.startsWith("classpath:")) {
+                    hash.update(resolveGlobalFile(path));
+                }
+            }
+        }
+        for (String element : getTestClasspath()) {
+            hash.update(element);
+            updateStamps(hash, new File(element));
+        }
+        if (xhrFixtures != null) {
+            hash.update(xhrFixtures.getAbsolutePath());
+            updateStamps(hash, xhrFixtures);
+        }
+        return hash.digest();
+    }
+
+    /**
+     * The fingerprint, plus how scripts are compiled.
+     */
+    private String getSnapshotKey(Context cx) throws IOException {
+        ContentHash hash = new ContentHash();
+        hash.update(getFingerprint());
+        hash.update(ScriptLoader.getCompilationStamp(cx, getLibraryOptimizationLevel()));
+        return hash.digest();
+    }
+
+    private List<String> getTestClasspath() throws IOException {
+        if (project == null) {
+            // A forked JVM was started with the test classpath
+            return Arrays.asList(System.getProperty("java.class.path").split(
+                    File.pathSeparator));
+        }
+        try {
+            @SuppressWarnings("unchecked")
+            List<String> testClasspath = project.getTestClasspathElements();
+            return testClasspath;
+        } catch (DependencyResolutionRequiredException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private static void updateStamps(ContentHash hash, File file) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                Arrays.sort(children);
+                for (File child : children) {
+                    updateStamps(hash, child);
+                }
+            }
+        } else if (file.isFile()) {
+            hash.update(file.getPath() + ":" + file.lastModified() + ":" + file.length());
+        }
+    }
+
+    /**
+     * @return the command line to start a JVM running ForkedWorkerMain, with
+     *         the plugin's classpath and the test classpath.
+     */
+    private List<String> getForkCommand() throws MojoExecutionException {
+        Set<String> classpath = new LinkedHashSet<String>();
+        ClassLoader loader = Testlol.class.getClassLoader();
+        if (loader instanceof URLClassLoader) {
+            for (URL url : ((URLClassLoader) loader).getURLs()) {
+                if ("file".equals(url.getProtocol())) {
+                    classpath.add(toFile(url).getPath());
+                }
+            }
+        }
+        // Maven's own classes come from its core realm rather than the
+        // plugin's, so find the jars the worker needs from them
+        Class<?>[] needed = { Testlol.class, Context.class, AbstractMojo.class,
+                MavenProject.class, DependencyResolutionRequiredException.class };
+        for (Class<?> type : needed) {
+            URL location = type.getProtectionDomain().getCodeSource().getLocation();
+            if ("file".equals(location.getProtocol())) {
+                classpath.add(toFile(location).getPath());
+            }
+        }
+        try {
+            @SuppressWarnings("unchecked")
+            List<String> testClasspath = project.getTestClasspathElements();
+            classpath.addAll(testClasspath);
+        } catch (DependencyResolutionRequiredException e) {
+            throw new MojoExecutionException(e.getMessage());
+        }
+        StringBuilder path = new StringBuilder();
+        for (String element : classpath) {
+            if (path.length() > 0) {
+                path.append(File.pathSeparator);
+            }
+            path.append(element);
+        }
+
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        if (argLine != null) {
+            command.addAll(splitArguments(argLine));
+        }
+        command.add("-cp");
+        command.add(path.toString());
+        command.add(ForkedWorkerMain.class.getName());
+        return command;
+    }
+
+    /**
+     * @return the file a file: URL points to. Unlike URL.getPath(), this
+     *         decodes escapes such as %20.
+     */
+    private static File toFile(URL url) {
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException e) {
+            return new File(url.getPath());
+        } catch (IllegalArgumentException e) {
+            return new File(url.getPath());
+        }
+    }
+
+    /**
+     * Split a command line into arguments at whitespace, except inside
+     * single or double quotes, which are removed, so -Dfoo="a b" is one
+     * argument.
+     */
+    static List<String> splitArguments(String line) {
+        List<String> arguments = new ArrayList<String>();
+        StringBuilder argument = new StringBuilder();
+        boolean inArgument = false;
+        char quote = 0;
+        for (char c : line.toCharArray()) {
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else {
+                    argument.append(c);
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                inArgument = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inArgument) {
+                    arguments.add(argument.toString());
+                    argument.setLength(0);
+                    inArgument = false;
+                }
+            } else {
+                argument.append(c);
+                inArgument = true;
+            }
+        }
+        if (inArgument) {
+            arguments.add(argument.toString());
+        }
+        return arguments;
+    }
+
+    private byte[] getForkConfiguration() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeForkConfiguration(out);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write what a forked JVM needs to set up the same Shell as this one.
+     * Relative global files are resolved here, since the forked JVM has no
+     * project.
+     */
+    void writeForkConfiguration(DataOutputStream out) throws IOException {
+        ForkProtocol.writeString(out, testSuite.getAbsolutePath());
+        ForkProtocol.writeString(out, basePath.getAbsolutePath());
+        ForkProtocol.writeString(out, workDirectory.getAbsolutePath());
+        List<String> globals = null;
+        if (globalFiles != null) {
+            globals = new ArrayList<String>();
+            for (String path : globalFiles) {
+                globals.add(path.startsWith("classpath:") ? path : resolveGlobalFile(path)
+                        .getAbsolutePath());
+            }
+        }
+        ForkProtocol.writeStrings(out, globals);
+        ForkProtocol.writeString(out, executionMode);
+        out.writeInt(optimizationLevel);
+        out.writeLong(testTimeout);
+        out.writeLong(testInstructionLimit);
+        out.writeLong(fileTimeout);
+        out.writeLong(fileInstructionLimit);
+        out.writeBoolean(snapshot);
+        ForkProtocol.writeString(out, (xhrFixtures != null) ? xhrFixtures.getAbsolutePath()
+                : null);
+        out.writeBoolean(getLog().isDebugEnabled());
+    }
+
+    /**
+     * Read the configuration written by writeForkConfiguration(), in a forked
+     * JVM.
+     */
+    void readForkConfiguration(DataInputStream in) throws IOException {
+        testSuite = new File(ForkProtocol.readString(in));
+        basePath = new File(ForkProtocol.readString(in));
+        workDirectory = new File(ForkProtocol.readString(in));
+        List<String> globals = ForkProtocol.readStrings(in);
+        globalFiles = (globals != null) ? globals.toArray(new String[globals.size()]) : null;
+        executionMode = ForkProtocol.readString(in);
+        optimizationLevel = in.readInt();
+        testTimeout = in.readLong();
+        testInstructionLimit = in.readLong();
+        fileTimeout = in.readLong();
+        fileInstructionLimit = in.readLong();
+        snapshot = in.readBoolean();
+        String fixtures = ForkProtocol.readString(in);
+        xhrFixtures = (fixtures != null) ? new File(fixtures) : null;
+        boolean debug = in.readBoolean();
+        if (getLog() instanceof ForkedLog) {
+            ((ForkedLog) getLog()).setDebugEnabled(debug);
+        }
+        shardIndex = 0;
+        shardCount = 1;
+    }
+
+    private File resolveGlobalFile(String path) {
+        File file = new File(path);
+        if (!file.isAbsolute()) {
+            file = new File(project.getBasedir(), path);
+        }
+        return file;
+    }
+
+    /**
+     * @return the global files which are loaded from the file system rather
+     *         than the classpath.
+     */
+    List<File> getGlobalFiles() {
+        List<File> files = new ArrayList<File>();
+        if (globalFiles != null) {
+            for (String path : globalFiles) {
+                if (!path.startsWith("classpath:")) {
+                    files.add(resolveGlobalFile(path));
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @return the plugin's version, plus the modification time of the plugin
+     *         jar so rebuilt snapshots count as a new version.
+     */
+    static String getPluginVersion() throws IOException {
+        Properties pom = new Properties();
+        InputStream in = Testlol.class.getClassLoader().getResourceAsStream(
+                "META-INF/maven/tv.bodil/maven-testlol-plugin/pom.properties");
+        if (in != null) {
+            try {
+                pom.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        String version = pom.getProperty("version", "unknown");
+        URL location = Testlol.class.getProtectionDomain().getCodeSource().getLocation();
+        if ("file".equals(location.getProtocol())) {
+            version += ":" + toFile(location).lastModified();
+        }
+        return version;
+    }
+
+    /**
+     * @return the optimization level for test files and the files they load.
+     */
+    int getTestOptimizationLevel() {
+        return "compiled".equals(executionMode) ? optimizationLevel : -1;
+    }
+
+    /**
+     * @return the optimization level for the bundled runtime and global files.
+     */
+    int getLibraryOptimizationLevel() {
+        return "interpreted".equals(executionMode) ? -1 : optimizationLevel;
+    }
+
+    /**
+     * @return true if skipTests or maven.test.skip is set.
+     */
+    boolean isSkipped() {
+        return skipTests || skip;
+    }
+
     public File getTestSuite() {
         return this.testSuite;
     }
@@ -230,6 +1043,10 @@ public class Testlol extends AbstractMojo {
         return this.basePath;
     }
 
+    File getReportPath() {
+        return this.reportPath;
+    }
+
     public ClassLoader getClassLoader() throws MalformedURLException, DependencyResolutionRequiredException {
         @SuppressWarnings("unchecked")
         List<String> classpathFiles = project.getTestClasspathElements();
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.RhinoException;
+
+/**
+ * Runs the test suite, then keeps watching the test suite and the files under
+ * test, and runs the test files affected by every change until interrupted.
+ *
+ * The Shell, compiled scripts and the CoffeeScript compiler are set up once
+ * and stay warm between runs. Each test file still runs in a fresh scope of
+ * its own. A test file is affected by a change to itself or to any file it
+ * loaded last time it ran. A change to a global file sets up a new Shell and
+ * runs everything.
+ *
+ * @goal watch
+ * @configurator include-project-dependencies
+ * @requiresDependencyResolution test
+ */
+public class Watch extends Testlol {
+
+    /**
+     * How often to look for changed files, in ms.
+     *
+     * @parameter default-value="100" expression="${testlol.watchInterval}"
+     */
+    private long watchInterval;
+
+    private ContextFactory contextFactory;
+    private TestWorker worker;
+    private TestSuite suite;
+    private final Map<File, String> stamps = new HashMap<File, String>();
+    private final Map<File, Set<File>> dependencies = new HashMap<File, Set<File>>();
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        configure();
+        contextFactory = createContextFactory();
+        suite = new TestSuite(getTestSuite(), getReportPath());
+        // Metrics would only pile up over a long session
+        suite.setMetrics(null);
+        try {
+            scan();
+            reload();
+            try {
+                runAll();
+                getLog().info("Watching " + getTestSuite() + " and " + getBasePath()
+                        + " for changes, press Ctrl-C to stop");
+                while (true) {
+                    Thread.sleep(watchInterval);
+                    Set<File> changed = scan();
+                    if (!changed.isEmpty()) {
+                        runChanged(changed);
+                    }
+                }
+            } finally {
+                if (worker != null) {
+                    worker.close();
+                }
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage());
+        } catch (InterruptedException e) {
+            getLog().info("Stopped watching");
+        }
+    }
+
+    /**
+     * Set up a new Shell. If the global files can't be loaded, say why and
+     * carry on without one until they change again.
+     */
+    private void reload() {
+        if (worker != null) {
+            TestWorker closing = worker;
+            worker = null;
+            closing.close();
+        }
+        try {
+            worker = new ContextWorker(contextFactory, this, null);
+        } catch (RhinoException e) {
+            getLog().error("Couldn't load the global files: " + e.getMessage());
+        } catch (IOException e) {
+            getLog().error("Couldn't load the global files: " + e.getMessage());
+        }
+    }
+
+    private void runAll() throws IOException {
+        if (worker == null) {
+            getLog().info("Waiting for the global files to be fixed");
+            return;
+        }
+        runFiles(findTests());
+    }
+
+    private void runChanged(Set<File> changed) throws IOException {
+        for (File global : getGlobalFiles()) {
+            if (changed.contains(global.getCanonicalFile())) {
+                getLog().info("Global file " + global + " changed, reloading");
+                reload();
+                runAll();
+                return;
+            }
+        }
+        if (worker == null) {
+            getLog().info("Waiting for the global files to be fixed");
+            return;
+        }
+        List<File> affected = new ArrayList<File>();
+        for (File test : findTests()) {
+            File canonical = test.getCanonicalFile();
+            Set<File> inputs = dependencies.get(canonical);
+            if (inputs == null || changed.contains(canonical)
+                    || !Collections.disjoint(inputs, changed)) {
+                affected.add(test);
+            }
+        }
+        if (!affected.isEmpty()) {
+            runFiles(affected);
+        }
+    }
+
+    private void runFiles(List<File> files) throws IOException {
+        long start = RunMetrics.now();
+        int passed = 0, failed = 0;
+        for (File file : files) {
+            String path = TestSuite.getTestPath(getTestSuite(), file);
+            getLog().info("Running test " + path);
+            File canonical = file.getCanonicalFile();
+            try {
+                TestResult result = worker.run(file, path);
+                dependencies.put(canonical, result.getDependencies());
+                failed += suite.reportResult(result, getLog());
+                passed += result.getPassed();
+            } catch (RhinoException e) {
+                // Most likely a syntax error, try again when the file changes
+                dependencies.put(canonical, Collections.singleton(canonical));
+                getLog().error(path + ": " + e.getMessage());
+                failed++;
+            } catch (MojoExecutionException e) {
+                getLog().error(path + ": " + e.getMessage());
+            }
+        }
+        getLog().info("");
+        getLog().info("Tests passed: " + passed
+                + ((failed > 0) ? (", tests FAILED: " + failed) : "") + " ("
+                + files.size() + " file" + (files.size() == 1 ? "" : "s") + " in "
+                + Math.round(RunMetrics.toMillis(RunMetrics.now() - start)) + " ms)");
+        getLog().info("");
+    }
+
+    private List<File> findTests() {
+        List<File> tests = new ArrayList<File>(ScriptLoader.findTests(getTestSuite()));
+        Collections.sort(tests);
+        return tests;
+    }
+
+    /**
+     * Look at every file under the test suite, the base path and the global
+     * files.
+     *
+     * @return the files which changed, appeared or disappeared since the last
+     *         scan.
+     */
+    private Set<File> scan() throws IOException {
+        Map<File, String> current = new HashMap<File, String>();
+        scan(getTestSuite().getCanonicalFile(), current);
+        scan(getBasePath().getCanonicalFile(), current);
+        for (File global : getGlobalFiles()) {
+            scan(global.getCanonicalFile(), current);
+        }
+        Set<File> changed = new HashSet<File>();
+        for (Map.Entry<File, String> entry : current.entrySet()) {
+            if (!entry.getValue().equals(stamps.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (File file : stamps.keySet()) {
+            if (!current.containsKey(file)) {
+                changed.add(file);
+            }
+        }
+        stamps.clear();
+        stamps.putAll(current);
+        return changed;
+    }
+
+    private static void scan(File file, Map<File, String> stamps) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    scan(child, stamps);
+                }
+            }
+        } else if (file.isFile()) {
+            stamps.put(file, file.lastModified() + ":" + file.length());
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+package tv.bodil.testlol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.mozilla.javascript.Context;
+
+/**
+ * Canned responses for XMLHttpRequest, kept in memory so requests are
+ * answered without touching the file system or the network.
+ *
+ * Responses are keyed by method and URL. The URL can be absolute, or a path
+ * starting with a slash, which matches any host, and also matches URLs
+ * relative to the test document. A fixture without a query string matches
+ * requests with any query string, unless there's a fixture for that exact
+ * query.
+ *
+ * The fixtures configured for a run are shared by every thread. Fixtures
+ * added by a test file belong to its Context and are dropped when the next
+ * file starts. Requests which no fixture answered are remembered, so they can
+ * be reported after the run.
+ */
+public class XhrFixtures {
+
+    private static final Object LOCAL_FIXTURES = new Object();
+
+    private static volatile XhrFixtures active;
+
+    public static class Response {
+        final int status;
+        final Map<String, String> headers;
+        final byte[] body;
+
+        public Response(int status, Map<String, String> headers, byte[] body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        public String getText() {
+            try {
+                return new String(body, "UTF-8");
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private final Map<String, Response> responses = new HashMap<String, Response>();
+    private final Set<String> unmatched = Collections.synchronizedSet(new TreeSet<String>());
+    private volatile boolean used;
+
+    /**
+     * Answer requests from the given fixtures from now on, or only from the
+     * fixtures added by test files if null.
+     */
+    public static void setActive(XhrFixtures fixtures) {
+        active = fixtures;
+    }
+
+    public static XhrFixtures getActive() {
+        return active;
+    }
+
+    /**
+     * @return the fixtures added by the test file running in the given
+     *         Context.
+     */
+    public static XhrFixtures getLocal(Context cx) {
+        XhrFixtures fixtures = (XhrFixtures) cx.getThreadLocal(LOCAL_FIXTURES);
+        if (fixtures == null) {
+            fixtures = new XhrFixtures();
+            cx.putThreadLocal(LOCAL_FIXTURES, fixtures);
+        }
+        // Adding fixtures makes the run's unmatched requests worth reporting
+        XhrFixtures shared = active;
+        if (shared != null) {
+            shared.used = true;
+        }
+        return fixtures;
+    }
+
+    /**
+     * Drop the fixtures added by the last test file. Requests are only
+     * reported as unmatched once a test file has started, so Env.js loading
+     * its own document isn't.
+     */
+    public static void startFile(Context cx) {
+        cx.putThreadLocal(LOCAL_FIXTURES, new XhrFixtures());
+    }
+
+    /**
+     * Look for a response to a request, first among the fixtures of the
+     * running test file, then among the fixtures of the run.
+     *
+     * @param base
+     *            the URL of the test document, which relative fixture paths
+     *            are resolved against, or null.
+     * @return the response, or null if there's no fixture for the request.
+     */
+    public static Response find(Context cx, String method, String url, String base) {
+        List<String> keys = getKeys(method.toUpperCase(Locale.ENGLISH), url, base);
+        XhrFixtures local = (XhrFixtures) cx.getThreadLocal(LOCAL_FIXTURES);
+        XhrFixtures shared = active;
+        for (String key : keys) {
+            if (local != null && local.responses.containsKey(key)) {
+                return local.responses.get(key);
+            }
+            if (shared != null && shared.responses.containsKey(key)) {
+                return shared.responses.get(key);
+            }
+        }
+        if (shared != null && local != null) {
+            shared.unmatched.add(keys.get(0));
+        }
+        return null;
+    }
+
+    /**
+     * @return the keys a request could match, best match first.
+     */
+    private static List<String> getKeys(String method, String url, String base) {
+        List<String> urls = new ArrayList<String>();
+        urls.add(url);
+        int query = url.indexOf('?');
+        if (query >= 0) {
+            urls.add(url.substring(0, query));
+        }
+        String baseDirectory = null;
+        if (base != null && base.lastIndexOf('/') >= 0) {
+            baseDirectory = base.substring(0, base.lastIndexOf('/') + 1);
+        }
+        List<String> keys = new ArrayList<String>();
+        for (String candidate : urls) {
+            keys.add(method + " " + candidate);
+        }
+        for (String candidate : urls) {
+            if (baseDirectory != null && candidate.startsWith(baseDirectory)) {
+                keys.add(method + " /" + candidate.substring(baseDirectory.length()));
+            } else if (candidate.matches("^[a-zA-Z]+://[^/]*/.*")) {
+                keys.add(method + " " + candidate.replaceFirst("^[a-zA-Z]+://[^/]*", ""));
+            }
+        }
+        return keys;
+    }
+
+    public void add(String method, String url, Response response) {
+        responses.put(method.toUpperCase(Locale.ENGLISH) + " " + url, response);
+        used = true;
+    }
+
+    /**
+     * Load the fixtures in a directory. Each file under a directory named after
+     * a method, such as GET/api/items.json, is the body of the response to
+     * that method at that path, eg. GET /api/items.json. An optional
+     * properties file next to it, named like the file plus ".headers", gives
+     * the status and the response headers.
+     *
+     * @return the number of fixtures loaded.
+     */
+    public int load(File directory) throws IOException {
+        int count = 0;
+        File[] methods = directory.listFiles();
+        if (methods == null) {
+            throw new IOException("Couldn't read XHR fixtures in " + directory);
+        }
+        for (File method : methods) {
+            if (method.isDirectory()) {
+                count += load(method.getName(), method, "");
+            }
+        }
+        return count;
+    }
+
+    private int load(String method, File directory, String path) throws IOException {
+        int count = 0;
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        for (File file : files) {
+            String filePath = path + "/" + file.getName();
+            if (file.isDirectory()) {
+                count += load(method, file, filePath);
+            } else if (file.isFile() && !file.getName().endsWith(".headers")) {
+                add(method, filePath, loadResponse(file));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Response loadResponse(File file) throws IOException {
+        Properties properties = new Properties();
+        File headerFile = new File(file.getPath() + ".headers");
+        if (headerFile.isFile()) {
+            InputStream in = new FileInputStream(headerFile);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        int status = 200;
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Content-Type", getContentType(file.getName()));
+        for (String name : properties.stringPropertyNames()) {
+            if ("status".equals(name)) {
+                try {
+                    status = Integer.parseInt(properties.getProperty(name).trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid status in " + headerFile);
+                }
+            } else {
+                headers.put(name, properties.getProperty(name));
+            }
+        }
+        return new Response(status, headers, readBytes(file));
+    }
+
+    /**
+     * The content type Env.js gives local files.
+     */
+    static String getContentType(String name) {
+        if (name.endsWith("html")) {
+            return "text/html";
+        } else if (name.endsWith(".xml")) {
+            return "text/xml";
+        } else if (name.endsWith(".js")) {
+            return "text/javascript";
+        } else if (name.endsWith(".json")) {
+            return "application/json";
+        }
+        return "text/plain";
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    public int size() {
+        return responses.size();
+    }
+
+    /**
+     * @return true if any fixtures were configured or added by a test file.
+     */
+    public boolean isUsed() {
+        return used;
+    }
+
+    /**
+     * Add the requests which no fixture answered in a forked JVM.
+     */
+    void addUnmatched(List<String> requests, boolean usedByFork) {
+        unmatched.addAll(requests);
+        if (usedByFork) {
+            used = true;
+        }
+    }
+
+    /**
+     * @return the requests no fixture answered, as "METHOD url".
+     */
+    public List<String> getUnmatched() {
+        synchronized (unmatched) {
+            return new ArrayList<String>(unmatched);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+/*
+ * Replaces the timers of Env.js with an event loop which runs on the test's
+ * own thread against a virtual clock. Nothing runs until the test asks for
+ * it, and waiting for a timer doesn't take any real time:
+ *
+ *   eventLoop.now()        the virtual time in ms, 0 at the start of a file
+ *   eventLoop.advance(ms)  move the clock ms ahead, running the timers due
+ *   eventLoop.runDue()     run the timers due now
+ *   eventLoop.flush()      run timers until there are none left
+ *   eventLoop.pending()    the number of timers waiting to run
+ *   eventLoop.reset()      drop every timer and set the clock back to 0
+ *
+ * Date follows the same clock: new Date() and Date.now() return the real
+ * time the file started, plus eventLoop.now().
+ *
+ * Every test file starts with an empty loop. Errors thrown by timers run
+ * from a test are thrown on to the test; timers run by Env.js itself only
+ * log them, as Env.js did.
+ */
+var eventLoop = (function(global) {
+
+    // Intervals never run out, so flushing has to stop somewhere
+    var FLUSH_LIMIT = 10000;
+
+    var RealDate = Date;
+
+    var state = function() {
+        var loop = getEventLoopState();
+        if (!loop.queue) {
+            loop.start = new RealDate().getTime();
+            loop.now = 0;
+            loop.lastId = 0;
+            loop.queue = [];
+            loop.timers = {};
+        }
+        return loop;
+    };
+
+    // Timers due at the same time run in the order they were scheduled
+    var schedule = function(loop, timer) {
+        var i = loop.queue.length;
+        while (i > 0 && loop.queue[i - 1].at > timer.at) {
+            i--;
+        }
+        loop.queue.splice(i, 0, timer);
+    };
+
+    var add = function(fn, delay, args, repeat) {
+        var loop = state(), id = ++loop.lastId;
+        if (typeof fn == "string") {
+            fn = new Function(fn);
+        }
+        delay = delay * 1;
+        if (isNaN(delay) || delay < 0) {
+            delay = 0;
+        }
+        if (repeat && delay < 10) {
+            delay = 10;
+        }
+        var timer = {
+            id: id,
+            fn: fn,
+            args: Array.prototype.slice.call(args, 2),
+            at: loop.now + delay,
+            interval: repeat ? delay : -1
+        };
+        loop.timers[id] = timer;
+        schedule(loop, timer);
+        return id;
+    };
+
+    var clear = function(id) {
+        var loop = state(), timer = loop.timers[id];
+        if (timer) {
+            delete loop.timers[id];
+            for (var i = 0; i < loop.queue.length; i++) {
+                if (loop.queue[i] === timer) {
+                    loop.queue.splice(i, 1);
+                    break;
+                }
+            }
+        }
+    };
+
+    /*
+     * Run the timers due at or before the given time, in order, moving the
+     * clock to each one as it runs.
+     *
+     * @return the number of timers run.
+     */
+    var run = function(until, limit, rethrow) {
+        var loop = state(), count = 0;
+        while (loop.queue.length > 0 && loop.queue[0].at <= until) {
+            if (count >= limit) {
+                if (rethrow) {
+                    throw new Error("Gave up after running " + limit
+                            + " timers, is an interval still running?");
+                }
+                break;
+            }
+            var timer = loop.queue.shift();
+            if (timer.at > loop.now) {
+                loop.now = timer.at;
+            }
+            // Reschedule intervals first, so they can clear themselves
+            if (timer.interval >= 0) {
+                timer.at = loop.now + timer.interval;
+                schedule(loop, timer);
+            } else {
+                delete loop.timers[timer.id];
+            }
+            count++;
+            try {
+                timer.fn.apply(global, timer.args);
+            } catch (e) {
+                if (rethrow) {
+                    throw e;
+                }
+                console.log('timer error %s %s', timer.fn, e);
+            }
+        }
+        return count;
+    };
+
+    /*
+     * Dates tell the virtual time too, counted from the real time the file
+     * started, so code which checks how much time has passed, such as
+     * animations or polling until a deadline, sees the clock move with the
+     * timers.
+     */
+    var currentTime = function() {
+        var loop = state();
+        return loop.start + loop.now;
+    };
+
+    Date = function(year, month, day, hours, minutes, seconds, ms) {
+        if (!(this instanceof Date)) {
+            return new RealDate(currentTime()).toString();
+        }
+        switch (arguments.length) {
+        case 0: return new RealDate(currentTime());
+        case 1: return new RealDate(year);
+        case 2: return new RealDate(year, month);
+        case 3: return new RealDate(year, month, day);
+        case 4: return new RealDate(year, month, day, hours);
+        case 5: return new RealDate(year, month, day, hours, minutes);
+        case 6: return new RealDate(year, month, day, hours, minutes, seconds);
+        default: return new RealDate(year, month, day, hours, minutes, seconds, ms);
+        }
+    };
+    Date.prototype = RealDate.prototype;
+    Date.parse = RealDate.parse;
+    Date.UTC = RealDate.UTC;
+    Date.now = currentTime;
+
+    setTimeout = function(fn, time) {
+        return add(fn, time, arguments, false);
+    };
+
+    setInterval = function(fn, time) {
+        return add(fn, time, arguments, true);
+    };
+
+    clearTimeout = clearInterval = function(id) {
+        clear(id);
+    };
+
+    // wait === null/undefined: run timers until there are none left
+    // wait(n) (n > 0): run the timers due in the next n ms
+    // wait(0): run the timers due now
+    // wait(-n): run timers until the next one is more than n ms away
+    Envjs.wait = function(wait) {
+        var loop = state();
+        if (wait === null || wait === undefined) {
+            run(Infinity, FLUSH_LIMIT, false);
+        } else if (wait < 0) {
+            var count = 0;
+            while (count < FLUSH_LIMIT && loop.queue.length > 0
+                    && loop.queue[0].at <= loop.now - wait) {
+                count += run(loop.queue[0].at, 1, false);
+            }
+        } else {
+            var until = loop.now + wait;
+            run(until, FLUSH_LIMIT, false);
+            loop.now = until;
+        }
+    };
+
+    Envjs.sleep = function(milliseconds) {
+        state().now += milliseconds;
+    };
+
+    // Only ever one thread: async work runs right away, then the timers it
+    // set up, as it did on platforms without threads
+    Envjs.sync = function(fn) {
+        return fn;
+    };
+
+    Envjs.spawn = function(fn) {
+        return fn();
+    };
+
+    Envjs.runAsync = function(fn, onInterrupt) {
+        try {
+            fn();
+            Envjs.wait();
+        } catch (e) {
+            console.log("error while running async operation", e);
+            try { if (onInterrupt) onInterrupt(e); } catch (ee) {}
+        }
+    };
+
+    return {
+        now: function() {
+            return state().now;
+        },
+
+        advance: function(milliseconds) {
+            var loop = state(), until = loop.now + (milliseconds || 0);
+            var count = run(until, FLUSH_LIMIT, true);
+            loop.now = until;
+            return count;
+        },
+
+        runDue: function() {
+            return run(state().now, FLUSH_LIMIT, true);
+        },
+
+        flush: function(limit) {
+            return run(Infinity, limit || FLUSH_LIMIT, true);
+        },
+
+        pending: function() {
+            return state().queue.length;
+        },
+
+        reset: function() {
+            resetEventLoop();
+        }
+    };
+})(this);
@@ -4,6 +4,53 @@
  * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
  */
 
+/*
+ * Env.js keeps the Context it was loaded in, but a shared scope is used from
+ * the Contexts of other threads long after that one has exited. Look up the
+ * current thread's Context whenever Env.js needs one instead, and drop the
+ * old one.
+ */
+__context__ = null;
+
+Envjs.eval = function(context, source, name){
+    Packages.org.mozilla.javascript.Context.getCurrentContext().evaluateString(
+        context,
+        source,
+        name,
+        0,
+        null
+    );
+};
+
+Envjs.proxy = function(scope, parent) {
+    try{
+        if(scope+'' == '[object global]'){
+            return scope
+        }else{
+            return Packages.org.mozilla.javascript.Context.getCurrentContext()
+                .initStandardObjects();
+        }
+    }catch(e){
+        console.log('failed to init standard objects %s %s \n%s', scope, parent, e);
+    }
+};
+
+Envjs.onExit = function(callback){
+    var rhino = Packages.org.mozilla.javascript,
+        context = rhino.Context.getCurrentContext(),
+        contextFactory = context.getFactory(),
+        listener = new rhino.ContextFactory.Listener({
+            contextReleased: function(released){
+                if(released === context)
+                    console.log('context released', released);
+                contextFactory.removeListener(this);
+                if(callback)
+                    callback();
+            }
+        });
+    contextFactory.addListener(listener);
+};
+
 (function($env){
     $env(getClasspathResource("/tv/bodil/testlol/html/index.html"));
 })(Envjs);
@@ -6,21 +6,37 @@
 
 var tried = 0, passed = 0, failed = 0;
 var details = {};
+var setUpTime = 0, tearDownTime = 0;
 
 if (typeof this.setUp == "function") {
+    var timer = getLolNanoTimer();
     this.setUp();
+    setUpTime = getLolNanoTimer() - timer;
 }
 
 for (key in this) {
     var member = this[key];
     if (key.indexOf("test") === 0 && typeof member == "function") {
         tried++;
-        var timer = getLolTimer();
+        var timer = getLolNanoTimer();
+        var timeout = null;
         try {
-            member.call(this);
+            startTestBudget(key);
+            try {
+                member.call(this);
+            } finally {
+                timeout = stopTestBudget();
+            }
+            if (timeout) {
+                // The test swallowed the error and returned anyway
+                throw timeout;
+            }
             passed++;
-            details[key] = { success: true, time: getLolTimer() - timer };
+            details[key] = { success: true, time: getLolNanoTimer() - timer };
         } catch (e) {
+            if (timeout) {
+                e = { isTimeout: true, message: timeout, rhinoException: e && e.rhinoException };
+            }
             // If somebody threw a string, rethrow it as a proper exception.            
             if (typeof e == "string") {
                 try {
@@ -35,12 +51,14 @@ for (key in this) {
             if (e.rhinoException) {
                 e.stackTrace = e.rhinoException.getScriptStackTrace();
             }
-            details[key] = { failure: true, exception: e, time: getLolTimer() - timer };
+            details[key] = { failure: true, exception: e, time: getLolNanoTimer() - timer };
         }
     }
 }
 
 if (typeof this.tearDown == "function") {
+    var timer = getLolNanoTimer();
     this.tearDown();
+    tearDownTime = getLolNanoTimer() - timer;
 }
 
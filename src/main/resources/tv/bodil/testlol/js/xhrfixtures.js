@@ -0,0 +1,35 @@
+/*
+ * Copyright 2009 Bodil Stokke <bodil@bodil.tv>
+ *
+ * Licensed under the MIT license: http://www.opensource.org/licenses/mit-license.php
+ */
+
+/*
+ * Answers XMLHttpRequests from the fixtures configured for the run or added
+ * with addXhrFixture(method, url, status, body, headers), straight from
+ * memory. Requests without a fixture go through Env.js as before.
+ */
+(function(connection) {
+    Envjs.connection = function(xhr, responseHandler, data) {
+        var base = null;
+        try {
+            base = window.location.href + "";
+        } catch (e) {
+            // No document loaded yet
+        }
+        var response = findXhrFixture(xhr.method + "", xhr.url + "", base);
+        if (!response) {
+            return connection(xhr, responseHandler, data);
+        }
+        for (var name in response.headers) {
+            xhr.responseHeaders[name] = response.headers[name];
+        }
+        xhr.readyState = 4;
+        xhr.status = response.status;
+        xhr.statusText = "";
+        xhr.responseText = response.text;
+        if (responseHandler) {
+            responseHandler();
+        }
+    };
+})(Envjs.connection);